@@ -0,0 +1,63 @@
+package src;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Spins, then yields, then parks for a period that doubles on every idle pass up to a maximum.
+ * Any pass that finds work starts over with spinning.
+ * @author apebbati
+ *
+ */
+public class BackoffIdleStrategy implements IdleStrategy 
+{
+	private final int maxSpins;
+	private final int maxYields;
+	private final long minParkNanos;
+	private final long maxParkNanos;
+	
+	private int spins=0;
+	private int yields=0;
+	private long parkNanos;
+	
+	public BackoffIdleStrategy(int maxSpins, int maxYields, long minParkNanos, long maxParkNanos)
+	{
+		this.maxSpins=maxSpins;
+		this.maxYields=maxYields;
+		this.minParkNanos=Math.max(1, minParkNanos);
+		this.maxParkNanos=Math.max(this.minParkNanos, maxParkNanos);
+		this.parkNanos=this.minParkNanos;
+	}
+	
+	@Override
+	public void idle(int workCount) 
+	{
+		if (workCount > 0)
+		{
+			spins=0;
+			yields=0;
+			parkNanos=minParkNanos;
+			return;
+		}
+		
+		if (spins < maxSpins)
+		{
+			spins++;
+			Thread.onSpinWait();
+		}
+		else if (yields < maxYields)
+		{
+			yields++;
+			Thread.yield();
+		}
+		else
+		{
+			LockSupport.parkNanos(parkNanos);
+			parkNanos = Math.min(2 * parkNanos, maxParkNanos);
+		}
+	}
+	
+	@Override
+	public void signal() 
+	{
+	}
+}
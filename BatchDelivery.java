@@ -0,0 +1,40 @@
+package src;
+
+/**
+ * Batch handler of a consumer with its limits. A batch is delivered once it is full, 
+ * or once its oldest message has waited for the linger time.
+ * On topics with a dependency order, every message is delivered on its own.
+ * @author apebbati
+ *
+ */
+public class BatchDelivery 
+{
+	private final BatchMessageHandler handler;
+	private final int maxBatchSize;
+	private final long maxLingerMillis;
+	
+	public BatchDelivery(BatchMessageHandler handler, int maxBatchSize, long maxLingerMillis)
+	{
+		if (handler == null)
+			throw new IllegalArgumentException("Batch handler cannot be null.");
+		
+		this.handler=handler;
+		this.maxBatchSize=Math.max(1, maxBatchSize);
+		this.maxLingerMillis=Math.max(0, maxLingerMillis);
+	}
+	
+	public BatchMessageHandler getHandler() 
+	{
+		return handler;
+	}
+	
+	public int getMaxBatchSize() 
+	{
+		return maxBatchSize;
+	}
+	
+	public long getMaxLingerMillis() 
+	{
+		return maxLingerMillis;
+	}
+}
@@ -0,0 +1,18 @@
+package src;
+
+import java.util.List;
+
+/**
+ * Processes the messages a Consumer consumes in batches, e.g. to write them with a single bulk insert.
+ * Called like a MessageHandler, from the subscription's own thread and in order.
+ * @author apebbati
+ *
+ */
+public interface BatchMessageHandler 
+{
+	/**
+	 * @param topic - Topic the consumer subscribed to
+	 * @param messages - Oldest first, never empty. The list is handed over and not used by the queue afterwards.
+	 */
+	void onBatch(String topic, List<Message> messages);
+}
@@ -0,0 +1,248 @@
+package src;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compact content of a message, kept as a single length-prefixed binary buffer.
+ * Fields are only decoded when they are accessed.
+ * Field layout: name length (short), UTF-8 name, type (byte), value.
+ * Strings and byte arrays are prefixed with their length (int).
+ * The buffer is not copied, it must not be modified once the payload is created.
+ * @author apebbati
+ *
+ */
+public class BinaryPayload
+{
+	private static final byte TYPE_INT = 1;
+	private static final byte TYPE_LONG = 2;
+	private static final byte TYPE_DOUBLE = 3;
+	private static final byte TYPE_BOOLEAN = 4;
+	private static final byte TYPE_STRING = 5;
+	private static final byte TYPE_BYTES = 6;
+	
+	private final byte[] bytes;
+	
+	/**
+	 * Wraps bytes produced by a Builder, for example after reading them back from disk.
+	 */
+	public BinaryPayload(byte[] bytes)
+	{
+		this.bytes = bytes;
+	}
+	
+	public static Builder builder()
+	{
+		return new Builder();
+	}
+	
+	/**
+	 * Encoded payload. Returned as is, without a copy.
+	 */
+	public byte[] getBytes()
+	{
+		return bytes;
+	}
+	
+	public int getSizeInBytes()
+	{
+		return bytes.length;
+	}
+	
+	public boolean hasField(String name)
+	{
+		return find(name) >= 0;
+	}
+	
+	public int getInt(String name)
+	{
+		return ByteBuffer.wrap(bytes).getInt(valueOffset(name, TYPE_INT));
+	}
+	
+	public long getLong(String name)
+	{
+		return ByteBuffer.wrap(bytes).getLong(valueOffset(name, TYPE_LONG));
+	}
+	
+	public double getDouble(String name)
+	{
+		return ByteBuffer.wrap(bytes).getDouble(valueOffset(name, TYPE_DOUBLE));
+	}
+	
+	public boolean getBoolean(String name)
+	{
+		return bytes[valueOffset(name, TYPE_BOOLEAN)] != 0;
+	}
+	
+	/**
+	 * @return null if the payload has no such field
+	 */
+	public String getString(String name)
+	{
+		int offset = find(name);
+		if (offset < 0)
+			return null;
+		
+		offset = valueOffset(name, offset, TYPE_STRING);
+		int length = ByteBuffer.wrap(bytes).getInt(offset);
+		return new String(bytes, offset + 4, length, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * @return null if the payload has no such field
+	 */
+	public byte[] getBytes(String name)
+	{
+		int offset = find(name);
+		if (offset < 0)
+			return null;
+		
+		offset = valueOffset(name, offset, TYPE_BYTES);
+		int length = ByteBuffer.wrap(bytes).getInt(offset);
+		return Arrays.copyOfRange(bytes, offset + 4, offset + 4 + length);
+	}
+	
+	private int valueOffset(String name, byte type)
+	{
+		int offset = find(name);
+		if (offset < 0)
+			throw new IllegalArgumentException("Payload has no field '" + name + "'.");
+		
+		return valueOffset(name, offset, type);
+	}
+	
+	private int valueOffset(String name, int offset, byte type)
+	{
+		if (bytes[offset] != type)
+			throw new IllegalArgumentException("Field '" + name + "' is not of the requested type.");
+		
+		return offset + 1;
+	}
+	
+	/**
+	 * Offset of the type byte of the field, or -1 if there is no such field
+	 */
+	private int find(String name)
+	{
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		int offset = 0;
+		int nameLength;
+		int typeOffset;
+		while (offset < bytes.length)
+		{
+			nameLength = buffer.getShort(offset);
+			typeOffset = offset + 2 + nameLength;
+			if (nameLength == nameBytes.length
+					&& Arrays.equals(bytes, offset + 2, typeOffset, nameBytes, 0, nameBytes.length))
+				return typeOffset;
+			
+			offset = typeOffset + 1 + valueLength(buffer, typeOffset);
+		}
+		return -1;
+	}
+	
+	private static int valueLength(ByteBuffer buffer, int typeOffset)
+	{
+		switch (buffer.get(typeOffset))
+		{
+		case TYPE_INT:
+			return 4;
+		case TYPE_LONG:
+		case TYPE_DOUBLE:
+			return 8;
+		case TYPE_BOOLEAN:
+			return 1;
+		default:
+			return 4 + buffer.getInt(typeOffset + 1);
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return "BinaryPayload[" + bytes.length + " bytes]";
+	}
+	
+	/**
+	 * Writes fields into a growing buffer. A field name should be added only once.
+	 */
+	public static class Builder
+	{
+		private ByteBuffer buffer = ByteBuffer.allocate(64);
+		
+		public Builder putInt(String name, int value)
+		{
+			putName(name, TYPE_INT, 4);
+			buffer.putInt(value);
+			return this;
+		}
+		
+		public Builder putLong(String name, long value)
+		{
+			putName(name, TYPE_LONG, 8);
+			buffer.putLong(value);
+			return this;
+		}
+		
+		public Builder putDouble(String name, double value)
+		{
+			putName(name, TYPE_DOUBLE, 8);
+			buffer.putDouble(value);
+			return this;
+		}
+		
+		public Builder putBoolean(String name, boolean value)
+		{
+			putName(name, TYPE_BOOLEAN, 1);
+			buffer.put((byte) (value ? 1 : 0));
+			return this;
+		}
+		
+		public Builder putString(String name, String value)
+		{
+			return putBytes(name, TYPE_STRING, value.getBytes(StandardCharsets.UTF_8));
+		}
+		
+		public Builder putBytes(String name, byte[] value)
+		{
+			return putBytes(name, TYPE_BYTES, value);
+		}
+		
+		private Builder putBytes(String name, byte type, byte[] value)
+		{
+			putName(name, type, 4 + value.length);
+			buffer.putInt(value.length);
+			buffer.put(value);
+			return this;
+		}
+		
+		private void putName(String name, byte type, int valueLength)
+		{
+			byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+			if (nameBytes.length > Short.MAX_VALUE)
+				throw new IllegalArgumentException("Field name is too long.");
+			
+			ensureCapacity(2 + nameBytes.length + 1 + valueLength);
+			buffer.putShort((short) nameBytes.length);
+			buffer.put(nameBytes);
+			buffer.put(type);
+		}
+		
+		private void ensureCapacity(int length)
+		{
+			if (buffer.remaining() >= length)
+				return;
+			
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * buffer.capacity(), buffer.position() + length));
+			buffer.flip();
+			larger.put(buffer);
+			buffer = larger;
+		}
+		
+		public BinaryPayload build()
+		{
+			return new BinaryPayload(Arrays.copyOf(buffer.array(), buffer.position()));
+		}
+	}
+}
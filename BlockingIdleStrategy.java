@@ -0,0 +1,49 @@
+package src;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Parks the loop thread after an idle pass until another thread signals it, 
+ * or until the maximum wait has passed. Idle loops cost next to nothing.
+ * The maximum wait bounds the delay of work that nobody signals, 
+ * like age based retention, interval fsyncs and the linger of batch handlers.
+ * @author apebbati
+ *
+ */
+public class BlockingIdleStrategy implements IdleStrategy 
+{
+	private final long maxWaitNanos;
+	private volatile Thread waiter;
+	/**
+	 * Set by signal, so that a signal sent while the loop was busy is not lost
+	 */
+	private final AtomicBoolean signalled = new AtomicBoolean();
+	
+	public BlockingIdleStrategy(long maxWaitMillis)
+	{
+		this.maxWaitNanos=TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+	}
+	
+	@Override
+	public void idle(int workCount) 
+	{
+		if (workCount > 0)
+			return;
+		
+		waiter = Thread.currentThread();
+		if (!signalled.getAndSet(false))
+			LockSupport.parkNanos(this, maxWaitNanos);
+		waiter = null;
+	}
+	
+	@Override
+	public void signal() 
+	{
+		signalled.set(true);
+		Thread thread = waiter;
+		if (thread != null)
+			LockSupport.unpark(thread);
+	}
+}
@@ -0,0 +1,21 @@
+package src;
+
+/**
+ * Never gives up the CPU. Lowest hand-off latency, at the cost of a core per loop.
+ * @author apebbati
+ *
+ */
+public class BusySpinIdleStrategy implements IdleStrategy 
+{
+	@Override
+	public void idle(int workCount) 
+	{
+		if (workCount == 0)
+			Thread.onSpinWait();
+	}
+	
+	@Override
+	public void signal() 
+	{
+	}
+}
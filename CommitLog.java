@@ -0,0 +1,411 @@
+package src;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Append-only log of the messages put into a TopicQueue.
+ * Messages are written to memory-mapped segment files, so an append is a copy
+ * into the page cache. Writes are forced to disk according to the FsyncPolicy.
+ * Records are numbered in the order they are appended, which is the order they
+ * are queued in, and every segment is named after its first record.
+ * A checkpoint file keeps the number of the first record still in the TopicQueue,
+ * which tells the replay what was still queued. Message IDs can't tell that,
+ * they are not in the order messages are queued.
+ * Segments whose records all left the TopicQueue are deleted once they are out of the
+ * topic's retention limits.
+ * Record layout: length of the encoded message, followed by MessageCodec bytes.
+ * A length of zero marks the end of the segment.
+ * @author apebbati
+ *
+ */
+public class CommitLog
+{
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final String CHECKPOINT_FILE = "checkpoint";
+	/**
+	 * Time between two checks of the retention limits
+	 */
+	private static final long RETENTION_INTERVAL_MILLIS = 1000;
+	
+	private File directory;
+	private PersistenceConfig config;
+	
+	private File segmentPath;
+	private RandomAccessFile segmentFile;
+	private MappedByteBuffer segment;
+	private long segmentNewestTimestamp=0;
+	/**
+	 * Segments before the current one, oldest first
+	 */
+	private List<ClosedSegment> closedSegments = new ArrayList<ClosedSegment>();
+	private MappedByteBuffer checkpoint;
+	private RandomAccessFile checkpointFile;
+	/**
+	 * Number the next appended record gets
+	 */
+	private long recordCount=0;
+	/**
+	 * Number of the first record still in the TopicQueue, as written to the checkpoint
+	 */
+	private long releasedRecord=0;
+	/**
+	 * Records that the replay didn't queue again, because the TopicQueue was full. They count as
+	 * released as soon as the records queued before them are. -1 if there are none.
+	 */
+	private long unqueuedFrom=-1;
+	private long unqueuedTo=-1;
+	/**
+	 * Replayed records that had already left the TopicQueue
+	 */
+	private int replayedReleasedCount=0;
+	private int unsyncedCount=0;
+	private int unsyncedReleaseCount=0;
+	private long lastSyncTime;
+	private volatile RetentionPolicy retentionPolicy = RetentionPolicy.UNLIMITED;
+	private volatile long nextRetentionTime=0;
+	
+	public CommitLog(File directory, PersistenceConfig config) throws IOException
+	{
+		this.directory=directory;
+		this.config=config;
+		this.lastSyncTime=System.currentTimeMillis();
+		init();
+	}
+	
+	private void init() throws IOException
+	{
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create directory " + directory);
+		
+		checkpointFile = new RandomAccessFile(new File(directory, CHECKPOINT_FILE), "rw");
+		checkpoint = checkpointFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 8);
+		// A new checkpoint file reads as zero, nothing released
+		releasedRecord = Math.max(0, checkpoint.getLong(0));
+	}
+	
+	/**
+	 * Reads back every message in the retained segments, oldest first,
+	 * and opens the last segment for appending.
+	 * The first getReleasedCount() of them had already left the TopicQueue.
+	 */
+	public synchronized List<Message> replay() throws IOException
+	{
+		List<Message> messages = new ArrayList<Message>();
+		File[] segmentFiles = getSegmentFiles();
+		
+		for (int i=0; i<segmentFiles.length; i++)
+		{
+			openSegment(segmentFiles[i], getBaseRecord(segmentFiles[i]));
+			readSegment(messages);
+			if (i < segmentFiles.length-1)
+				closeSegment();
+		}
+		
+		if (segment == null)
+			openSegment(new File(directory, segmentName(0)), 0);
+		// The checkpoint may have been forced before the last appends were
+		releasedRecord = Math.min(releasedRecord, recordCount);
+		checkpoint.putLong(0, releasedRecord);
+		
+		return messages;
+	}
+	
+	private void readSegment(List<Message> messages)
+	{
+		int length;
+		int start;
+		Message message;
+		while (segment.remaining() >= 4)
+		{
+			start = segment.position();
+			length = segment.getInt();
+			if (length <= 0 || length > segment.remaining())
+			{
+				segment.position(start);
+				return;
+			}
+			
+			try {
+				message = MessageCodec.decode(segment.slice().limit(length));
+			} catch (BufferUnderflowException e) {
+				// Torn write at the end of the log
+				segment.position(start);
+				return;
+			}
+			messages.add(message);
+			if (recordCount < releasedRecord)
+				replayedReleasedCount++;
+			segmentNewestTimestamp = Math.max(segmentNewestTimestamp, message.getTimestamp());
+			segment.position(segment.position() + length);
+			recordCount++;
+		}
+	}
+	
+	/**
+	 * Number of messages at the start of the replay that had already left the TopicQueue
+	 */
+	public synchronized int getReleasedCount()
+	{
+		return replayedReleasedCount;
+	}
+	
+	/**
+	 * Tells the log that the last 'count' replayed messages were not queued again.
+	 * They count as released once the messages queued before them are.
+	 */
+	public synchronized void skipUnqueued(int count)
+	{
+		if (count <= 0)
+			return;
+		
+		unqueuedFrom = recordCount - count;
+		unqueuedTo = recordCount;
+		markReleased(0);
+	}
+	
+	private File[] getSegmentFiles()
+	{
+		File[] files = directory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if (files == null)
+			return new File[0];
+		
+		// Names are zero padded, so they sort by record number
+		Arrays.sort(files);
+		return files;
+	}
+	
+	private String segmentName(long baseRecord)
+	{
+		return String.format("%020d", baseRecord) + SEGMENT_SUFFIX;
+	}
+	
+	private long getBaseRecord(File file)
+	{
+		String name = file.getName();
+		return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+	}
+	
+	private void openSegment(File file, long baseRecord) throws IOException
+	{
+		segmentPath = file;
+		segmentFile = new RandomAccessFile(file, "rw");
+		segment = segmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, config.getSegmentSize());
+		segmentNewestTimestamp = 0;
+		// Records lost to a torn write earlier in the log keep their numbers
+		recordCount = Math.max(recordCount, baseRecord);
+	}
+	
+	private void closeSegment() throws IOException
+	{
+		segment.force();
+		segmentFile.close();
+		closedSegments.add(new ClosedSegment(segmentPath, recordCount, segment.position(), segmentNewestTimestamp));
+		segment = null;
+	}
+	
+	/**
+	 * Appends the message. Rolls over to a new segment when the current one is full.
+	 */
+	public synchronized void append(Message message) throws IOException
+	{
+		if (segment == null)
+			throw new IOException("Commit log is closed.");
+		
+		byte[] bytes = MessageCodec.encode(message);
+		if (bytes.length + 8 > config.getSegmentSize())
+			throw new IOException("Message " + message.getMessageID() + " is larger than a commit log segment.");
+		
+		// Room for the record and the end marker
+		if (segment.remaining() < bytes.length + 8)
+		{
+			closeSegment();
+			openSegment(new File(directory, segmentName(recordCount)), recordCount);
+		}
+		
+		segment.putInt(bytes.length);
+		segment.put(bytes);
+		segmentNewestTimestamp = Math.max(segmentNewestTimestamp, message.getTimestamp());
+		recordCount++;
+		unsyncedCount++;
+		
+		switch (config.getFsyncPolicy())
+		{
+		case PER_MESSAGE:
+			sync();
+			break;
+		case PER_BATCH:
+			if (unsyncedCount >= config.getFsyncBatchSize())
+				sync();
+			break;
+		case INTERVAL:
+			flushIfDue();
+			break;
+		}
+	}
+	
+	/**
+	 * Forces pending writes if the fsync interval has elapsed.
+	 */
+	public synchronized void flushIfDue()
+	{
+		if (config.getFsyncPolicy() == FsyncPolicy.INTERVAL && (unsyncedCount > 0 || unsyncedReleaseCount > 0)
+				&& System.currentTimeMillis() - lastSyncTime >= config.getFsyncIntervalMillis())
+		{
+			sync();
+		}
+	}
+	
+	public synchronized void sync()
+	{
+		if (segment != null && unsyncedCount > 0)
+			segment.force();
+		if (unsyncedReleaseCount > 0)
+			checkpoint.force();
+		unsyncedCount=0;
+		unsyncedReleaseCount=0;
+		lastSyncTime=System.currentTimeMillis();
+	}
+	
+	/**
+	 * Records that the next 'count' queued messages have left the TopicQueue, in the order they were appended.
+	 * The checkpoint is forced to disk according to the FsyncPolicy, like the appended messages.
+	 */
+	public synchronized void markReleased(int count)
+	{
+		if (count == 0 && unqueuedFrom == -1)
+			return;
+		
+		releasedRecord += count;
+		if (unqueuedFrom != -1 && releasedRecord >= unqueuedFrom)
+		{
+			releasedRecord += unqueuedTo - unqueuedFrom;
+			unqueuedFrom = -1;
+		}
+		checkpoint.putLong(0, releasedRecord);
+		unsyncedReleaseCount += Math.max(1, count);
+		
+		switch (config.getFsyncPolicy())
+		{
+		case PER_MESSAGE:
+			checkpoint.force();
+			unsyncedReleaseCount=0;
+			break;
+		case PER_BATCH:
+			if (unsyncedReleaseCount >= config.getFsyncBatchSize())
+			{
+				checkpoint.force();
+				unsyncedReleaseCount=0;
+			}
+			break;
+		case INTERVAL:
+			flushIfDue();
+			break;
+		}
+	}
+	
+	public void setRetentionPolicy(RetentionPolicy retentionPolicy)
+	{
+		this.retentionPolicy = retentionPolicy;
+		nextRetentionTime = 0;
+	}
+	
+	/**
+	 * Deletes the oldest segments whose records all left the TopicQueue and are out of the retention limits.
+	 * Like MessageHistory, limits apply to whole segments, and the current segment is never deleted.
+	 * Sizes are the bytes of the records on disk. Checked at most once every RETENTION_INTERVAL_MILLIS.
+	 */
+	public void applyRetention()
+	{
+		long now = System.currentTimeMillis();
+		if (now < nextRetentionTime)
+			return;
+		nextRetentionTime = now + RETENTION_INTERVAL_MILLIS;
+		
+		RetentionPolicy policy = retentionPolicy;
+		if (policy.isUnlimited())
+			return;
+		
+		synchronized (this)
+		{
+			ClosedSegment oldest;
+			while (!closedSegments.isEmpty())
+			{
+				oldest = closedSegments.get(0);
+				if (oldest.endRecord > releasedRecord || !isExpired(oldest, policy, now))
+					break;
+				
+				if (!oldest.file.delete())
+				{
+					System.out.println("Could not delete commit log segment " + oldest.file + ".");
+					return;
+				}
+				closedSegments.remove(0);
+			}
+		}
+	}
+	
+	private boolean isExpired(ClosedSegment oldest, RetentionPolicy policy, long now)
+	{
+		long newerBytes = segment == null ? 0 : segment.position();
+		for (int i=1; i<closedSegments.size(); i++)
+		{
+			newerBytes += closedSegments.get(i).bytes;
+		}
+		
+		if (policy.getMaxMessages() > 0 && recordCount - oldest.endRecord >= policy.getMaxMessages())
+			return true;
+		if (policy.getMaxBytes() > 0 && newerBytes >= policy.getMaxBytes())
+			return true;
+		if (policy.getMaxAgeMillis() > 0 && oldest.newestTimestamp < now - policy.getMaxAgeMillis())
+			return true;
+		
+		return false;
+	}
+	
+	public synchronized void close()
+	{
+		try {
+			if (segment != null)
+				closeSegment();
+			checkpoint.force();
+			checkpointFile.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * A full segment, kept until retention deletes it
+	 */
+	private static class ClosedSegment
+	{
+		private final File file;
+		/**
+		 * Number of the first record after the segment
+		 */
+		private final long endRecord;
+		private final long bytes;
+		private final long newestTimestamp;
+		
+		ClosedSegment(File file, long endRecord, long bytes, long newestTimestamp)
+		{
+			this.file=file;
+			this.endRecord=endRecord;
+			this.bytes=bytes;
+			this.newestTimestamp=newestTimestamp;
+		}
+	}
+}
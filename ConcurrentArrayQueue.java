@@ -0,0 +1,392 @@
+package src;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Bounded queue for many producers that doesn't lock on offer or poll.
+ * Every slot has a sequence that tells whose turn it is: a producer claims the position
+ * at the tail with a CAS when the slot's sequence equals the position, and a consumer
+ * claims the position at the head when it is one more. A slot is published or released
+ * by setting its sequence.
+ * The blocking methods only take the lock after the lock-free path failed, and
+ * offer and poll only take it to signal a thread that is actually waiting.
+ * Elements can only be removed from the head. Removing one from the middle would leave a hole
+ * in the slots that producers and consumers claim by position, so remove(Object), removeAll,
+ * retainAll, removeIf and the iterator's remove throw UnsupportedOperationException.
+ * @author apebbati
+ *
+ * @param <E>
+ */
+public class ConcurrentArrayQueue<E> extends AbstractQueue<E> implements BlockingQueue<E>
+{
+	private final Object[] buffer;
+	private final AtomicLongArray sequences;
+	private final int capacity;
+	/**
+	 * Number of slots. At least two, or a released slot would look published to a producer.
+	 */
+	private final int slots;
+	private final AtomicLong tail = new AtomicLong();
+	private final AtomicLong head = new AtomicLong();
+	
+	private final ReentrantLock waitLock = new ReentrantLock();
+	private final Condition notEmpty = waitLock.newCondition();
+	private final Condition notFull = waitLock.newCondition();
+	private volatile int waitingConsumers=0;
+	private volatile int waitingProducers=0;
+	
+	public ConcurrentArrayQueue(int capacity)
+	{
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be greater than zero.");
+		
+		this.capacity = capacity;
+		this.slots = Math.max(2, capacity);
+		this.buffer = new Object[slots];
+		this.sequences = new AtomicLongArray(slots);
+		for (int i=0; i<slots; i++)
+		{
+			sequences.set(i, i);
+		}
+	}
+	
+	private int index(long position)
+	{
+		return (int) (position % slots);
+	}
+	
+	@Override
+	public boolean offer(E element)
+	{
+		if (element == null)
+			throw new NullPointerException();
+		
+		long position = tail.get();
+		long difference;
+		for (;;)
+		{
+			difference = sequences.get(index(position)) - position;
+			if (difference == 0)
+			{
+				// Extra slot of a queue of one
+				if (slots != capacity && position - head.get() >= capacity)
+					return false;
+				if (tail.compareAndSet(position, position + 1))
+					break;
+				position = tail.get();
+			}
+			else if (difference < 0)
+			{
+				// Slot still holds the element from a lap ago
+				return false;
+			}
+			else
+			{
+				position = tail.get();
+			}
+		}
+		
+		publish(position, element);
+		signalNotEmpty();
+		return true;
+	}
+	
+	private void publish(long position, E element)
+	{
+		int index = index(position);
+		buffer[index] = element;
+		sequences.set(index, position + 1);
+	}
+	
+	/**
+	 * Claims room for the elements with a single CAS on the tail, then publishes them in order.
+	 * Elements must not be null.
+	 * @param allOrNothing - Add none of them unless all fit
+	 * @return Number of elements added, from the start of the collection
+	 */
+	public int offerAll(Collection<? extends E> elements, boolean allOrNothing)
+	{
+		int requested = elements.size();
+		if (requested == 0)
+			return 0;
+		
+		long position;
+		int count;
+		do
+		{
+			position = tail.get();
+			count = (int) Math.min(requested, capacity - (position - head.get()));
+			if (count <= 0 || (allOrNothing && count < requested))
+				return 0;
+		} while (!tail.compareAndSet(position, position + count));
+		
+		Iterator<? extends E> itr = elements.iterator();
+		int index;
+		int spins;
+		for (long p=position; p<position + count; p++)
+		{
+			index = index(p);
+			// The consumer of the previous lap has moved the head past this slot, it is about to release it
+			for (spins=0; sequences.get(index) != p; spins++)
+			{
+				if (spins < 100)
+					Thread.onSpinWait();
+				else
+					Thread.yield();
+			}
+			publish(p, itr.next());
+		}
+		signalNotEmpty();
+		return count;
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Override
+	public E poll()
+	{
+		long position = head.get();
+		long difference;
+		for (;;)
+		{
+			difference = sequences.get(index(position)) - (position + 1);
+			if (difference == 0)
+			{
+				if (head.compareAndSet(position, position + 1))
+					break;
+				position = head.get();
+			}
+			else if (difference < 0)
+			{
+				// Nothing published at the head yet
+				return null;
+			}
+			else
+			{
+				position = head.get();
+			}
+		}
+		
+		int index = index(position);
+		E element = (E) buffer[index];
+		buffer[index] = null;
+		sequences.set(index, position + slots);
+		signalNotFull();
+		return element;
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Override
+	public E peek()
+	{
+		long position = head.get();
+		int index = index(position);
+		E element = (E) buffer[index];
+		// Only valid if the slot still holds the head when it is read
+		if (sequences.get(index) != position + 1 || head.get() != position)
+			return null;
+		return element;
+	}
+	
+	private void signalNotEmpty()
+	{
+		if (waitingConsumers == 0)
+			return;
+		
+		waitLock.lock();
+		try {
+			notEmpty.signal();
+		} finally {
+			waitLock.unlock();
+		}
+	}
+	
+	private void signalNotFull()
+	{
+		if (waitingProducers == 0)
+			return;
+		
+		waitLock.lock();
+		try {
+			notFull.signal();
+		} finally {
+			waitLock.unlock();
+		}
+	}
+	
+	@Override
+	public void put(E element) throws InterruptedException
+	{
+		if (offer(element))
+			return;
+		
+		waitLock.lockInterruptibly();
+		waitingProducers++;
+		try {
+			// Counted as waiting before trying again, so a consumer freeing a slot meanwhile signals
+			while (!offer(element))
+			{
+				notFull.await();
+			}
+		} finally {
+			waitingProducers--;
+			waitLock.unlock();
+		}
+	}
+	
+	@Override
+	public boolean offer(E element, long timeout, TimeUnit unit) throws InterruptedException
+	{
+		if (offer(element))
+			return true;
+		
+		long nanos = unit.toNanos(timeout);
+		waitLock.lockInterruptibly();
+		waitingProducers++;
+		try {
+			while (!offer(element))
+			{
+				if (nanos <= 0)
+					return false;
+				nanos = notFull.awaitNanos(nanos);
+			}
+			return true;
+		} finally {
+			waitingProducers--;
+			waitLock.unlock();
+		}
+	}
+	
+	@Override
+	public E take() throws InterruptedException
+	{
+		E element = poll();
+		if (element != null)
+			return element;
+		
+		waitLock.lockInterruptibly();
+		waitingConsumers++;
+		try {
+			while ((element = poll()) == null)
+			{
+				notEmpty.await();
+			}
+			return element;
+		} finally {
+			waitingConsumers--;
+			waitLock.unlock();
+		}
+	}
+	
+	@Override
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		E element = poll();
+		if (element != null)
+			return element;
+		
+		long nanos = unit.toNanos(timeout);
+		waitLock.lockInterruptibly();
+		waitingConsumers++;
+		try {
+			while ((element = poll()) == null)
+			{
+				if (nanos <= 0)
+					return null;
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return element;
+		} finally {
+			waitingConsumers--;
+			waitLock.unlock();
+		}
+	}
+	
+	@Override
+	public int remainingCapacity()
+	{
+		return capacity - size();
+	}
+	
+	@Override
+	public int size()
+	{
+		long size = tail.get() - head.get();
+		return (int) Math.max(0, Math.min(capacity, size));
+	}
+	
+	@Override
+	public int drainTo(Collection<? super E> collection)
+	{
+		return drainTo(collection, Integer.MAX_VALUE);
+	}
+	
+	@Override
+	public int drainTo(Collection<? super E> collection, int maxElements)
+	{
+		int drained = 0;
+		E element;
+		while (drained < maxElements && (element = poll()) != null)
+		{
+			collection.add(element);
+			drained++;
+		}
+		return drained;
+	}
+	
+	/**
+	 * Iterates over a snapshot of the published elements. The iterator can't remove them.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public Iterator<E> iterator()
+	{
+		List<E> snapshot = new ArrayList<E>(size());
+		long end = tail.get();
+		int index;
+		Object element;
+		for (long p=head.get(); p<end; p++)
+		{
+			index = index(p);
+			element = buffer[index];
+			if (element != null && sequences.get(index) == p + 1)
+				snapshot.add((E) element);
+		}
+		return Collections.unmodifiableList(snapshot).iterator();
+	}
+	
+	@Override
+	public boolean remove(Object element)
+	{
+		throw new UnsupportedOperationException("Only the head can be removed.");
+	}
+	
+	@Override
+	public boolean removeAll(Collection<?> elements)
+	{
+		throw new UnsupportedOperationException("Only the head can be removed.");
+	}
+	
+	@Override
+	public boolean retainAll(Collection<?> elements)
+	{
+		throw new UnsupportedOperationException("Only the head can be removed.");
+	}
+	
+	@Override
+	public boolean removeIf(Predicate<? super E> filter)
+	{
+		throw new UnsupportedOperationException("Only the head can be removed.");
+	}
+}
@@ -1,40 +1,195 @@
 package src;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Consumer
 {
 	private final int consumerID;
 	private Map<String, TopicQueue> topicMap;
+	private List<ConsumerGroup> groups;
 	private ExecutorService executorService;
-	private boolean isActive=true;
+	/**
+	 * Whether the executor belongs to this consumer, or is shared and shut down by QueueExt
+	 */
+	private boolean ownsExecutor;
+	private volatile boolean isActive=true;
+	/**
+	 * Subscription workers of an inactive consumer wait on 'activated'. A j.u.c. lock is used 
+	 * rather than the monitor, so that waiting virtual threads don't pin their carrier thread.
+	 */
+	private final Lock activeLock = new ReentrantLock();
+	private final Condition activated = activeLock.newCondition();
+	/**
+	 * Handles the messages of topics that have no handler of their own.
+	 * A consumer or topic has either a message handler or a batch handler.
+	 */
+	private volatile MessageHandler messageHandler;
+	private volatile BatchDelivery batchDelivery;
+	private Map<String, MessageHandler> topicHandlers;
+	private Map<String, BatchDelivery> topicBatchDeliveries;
 	
+	/**
+	 * Consumer with its own thread pool for its subscriptions
+	 */
 	public Consumer(int consumerID)
+	{
+		this(consumerID, Executors.newCachedThreadPool());
+		this.ownsExecutor = true;
+	}
+	
+	/**
+	 * Consumer whose subscriptions run on a shared executor
+	 */
+	public Consumer(int consumerID, ExecutorService executorService)
 	{
 		this.consumerID = consumerID;
+		this.executorService = executorService;
 		init();
 	}
 	
 	private void init()
 	{
-		executorService = Executors.newCachedThreadPool();
 		topicMap = new HashMap<String, TopicQueue>();
+		groups = new ArrayList<ConsumerGroup>();
+		topicHandlers = new ConcurrentHashMap<String, MessageHandler>();
+		topicBatchDeliveries = new ConcurrentHashMap<String, BatchDelivery>();
 	}
 	
 	/**
 	 * Subscribes consumer to a topic and creates a thread to listen to the concerned TopicQueue
 	 * @param topicQueue
+	 * @param diagnosticLog - Log of the subscription's deliveries
+	 * @return The subscription
 	 */
-	public void subscribeTopic(TopicQueue topicQueue)
+	public ConsumerTopic subscribeTopic(TopicQueue topicQueue, DiagnosticLog diagnosticLog)
 	{
 		synchronized (topicMap) 
 		{
 			topicMap.put(topicQueue.getTopic(), topicQueue);
-			executorService.submit(new ConsumerTopic(this, topicQueue));
+			ConsumerTopic consumerTopic = new ConsumerTopic(this, topicQueue, diagnosticLog);
+			executorService.submit(consumerTopic);
+			return consumerTopic;
+		}
+	}
+	
+	/**
+	 * Joins a consumer group. The group assigns partitions to the consumer while it is active.
+	 */
+	public void joinGroup(ConsumerGroup group)
+	{
+		synchronized (groups) 
+		{
+			if (!groups.contains(group))
+				groups.add(group);
+		}
+		group.addMember(this);
+	}
+	
+	public boolean isMemberOf(ConsumerGroup group)
+	{
+		synchronized (groups) 
+		{
+			return groups.contains(group);
+		}
+	}
+	
+	/**
+	 * Sets the handler for every topic without a handler of its own. Null to stop handling them.
+	 */
+	public void setMessageHandler(MessageHandler messageHandler) 
+	{
+		this.messageHandler = messageHandler;
+		this.batchDelivery = null;
+	}
+	
+	/**
+	 * Sets the handler for one topic. Null to fall back to the consumer's handler.
+	 */
+	public void setMessageHandler(String topic, MessageHandler messageHandler) 
+	{
+		topicBatchDeliveries.remove(topic);
+		if (messageHandler == null)
+			topicHandlers.remove(topic);
+		else
+			topicHandlers.put(topic, messageHandler);
+	}
+	
+	/**
+	 * Delivers the messages of every topic without a handler of its own in batches.
+	 * @param maxBatchSize - Largest batch delivered
+	 * @param maxLingerMillis - Longest time a message waits for the batch to fill up
+	 */
+	public void setBatchMessageHandler(BatchMessageHandler handler, int maxBatchSize, long maxLingerMillis) 
+	{
+		this.batchDelivery = new BatchDelivery(handler, maxBatchSize, maxLingerMillis);
+		this.messageHandler = null;
+	}
+	
+	/**
+	 * Delivers the messages of one topic in batches.
+	 */
+	public void setBatchMessageHandler(String topic, BatchMessageHandler handler, int maxBatchSize, long maxLingerMillis) 
+	{
+		topicBatchDeliveries.put(topic, new BatchDelivery(handler, maxBatchSize, maxLingerMillis));
+		topicHandlers.remove(topic);
+	}
+	
+	/**
+	 * @return null if the messages of the topic are delivered in batches, or not handled
+	 */
+	public MessageHandler getMessageHandler(String topic) 
+	{
+		MessageHandler handler = topicHandlers.get(topic);
+		if (handler != null || topicBatchDeliveries.containsKey(topic))
+			return handler;
+		return messageHandler;
+	}
+	
+	/**
+	 * @return null unless the messages of the topic are delivered in batches
+	 */
+	public BatchDelivery getBatchDelivery(String topic) 
+	{
+		BatchDelivery delivery = topicBatchDeliveries.get(topic);
+		if (delivery != null || topicHandlers.containsKey(topic))
+			return delivery;
+		return batchDelivery;
+	}
+	
+	/**
+	 * Passes a consumed message to its handler. A failing handler is logged and doesn't stop the subscription.
+	 */
+	void handleMessage(String topic, Message message)
+	{
+		MessageHandler handler = getMessageHandler(topic);
+		if (handler == null)
+			return;
+		
+		try {
+			handler.onMessage(topic, message);
+		} catch (RuntimeException e) {
+			QueueExt.getInstance().getDiagnosticLog().log(this + " failed to handle message " + message.getMessageID() + 
+					" from topic " + topic + ": " + e);
+		}
+	}
+	
+	void handleBatch(String topic, List<Message> messages, BatchMessageHandler handler)
+	{
+		try {
+			handler.onBatch(topic, messages);
+		} catch (RuntimeException e) {
+			QueueExt.getInstance().getDiagnosticLog().log(this + " failed to handle a batch of " + messages.size() + 
+					" messages from topic " + topic + ": " + e);
 		}
 	}
 	
@@ -42,11 +197,11 @@ public class Consumer
 	{
 		return consumerID;
 	}
-
+	
 	public boolean isActive() {
 		return isActive;
 	}
-
+	
 	/**
 	 * Sets consumer active/inactive
 	 * @param isActive
@@ -72,32 +227,64 @@ public class Consumer
 				entry.getValue().unsubscribeConsumer(this);
 		}
 		
-		if (isActive)
+		// Partitions of the consumer's groups move to or from this consumer
+		synchronized (groups) 
 		{
-			synchronized (this) 
+			for (ConsumerGroup group : groups)
 			{
-				this.notifyAll();
+				group.rebalance();
 			}
+		}
+		
+		if (isActive)
+		{
+			signalActivated();
 			System.out.println(this + " enabled.");
 		}
 		else
 			System.out.println(this + " disabled.");
 	}
-
+	
+	/**
+	 * Blocks while the consumer is inactive and the queue is running.
+	 */
+	public void awaitActive() throws InterruptedException
+	{
+		activeLock.lock();
+		try {
+			while (!isActive && QueueExt.getInstance().isRunning())
+			{
+				activated.await();
+			}
+		} finally {
+			activeLock.unlock();
+		}
+	}
+	
+	private void signalActivated()
+	{
+		activeLock.lock();
+		try {
+			activated.signalAll();
+		} finally {
+			activeLock.unlock();
+		}
+	}
+	
 	public boolean isRegisteredToTopic(String topic)
 	{
 		return topicMap.containsKey(topic);
 	}
-
+	
 	/**
 	 * Terminates all threads, waiting or otherwise.
 	 */
 	public void shutdown()
 	{
-		synchronized (this) 
-		{
-			this.notifyAll();
-		}
+		signalActivated();
+		if (!ownsExecutor)
+			return;
+		
 		executorService.shutdown();
 		try {
 			executorService.awaitTermination(1, TimeUnit.DAYS);
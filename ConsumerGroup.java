@@ -0,0 +1,160 @@
+package src;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Competing consumers of a PartitionedTopic. Every partition is assigned to one active 
+ * member, and every message of the partition is consumed by that member only.
+ * Partitions are reassigned when members join, or are enabled or disabled.
+ * A partition without an active member keeps its messages until one is assigned.
+ * @author apebbati
+ *
+ */
+public class ConsumerGroup 
+{
+	private final String name;
+	private final PartitionedTopic partitionedTopic;
+	private final List<Consumer> members;
+	/**
+	 * Owner of each partition, null if the group has no active member
+	 */
+	private volatile Consumer[] assignment;
+	private boolean started=false;
+	
+	private final Lock assignmentLock = new ReentrantLock();
+	private final Condition assignmentChanged = assignmentLock.newCondition();
+	
+	ConsumerGroup(String name, PartitionedTopic partitionedTopic)
+	{
+		this.name=name;
+		this.partitionedTopic=partitionedTopic;
+		this.members=new ArrayList<Consumer>();
+		this.assignment=new Consumer[partitionedTopic.getPartitionCount()];
+	}
+	
+	/**
+	 * Starts a worker per partition on the given executor. Does nothing if already started.
+	 */
+	public synchronized void start(ExecutorService executorService)
+	{
+		if (started)
+			return;
+		
+		for (int i=0; i<partitionedTopic.getPartitionCount(); i++)
+		{
+			executorService.submit(new GroupPartitionWorker(this, i, partitionedTopic.getPartition(i)));
+		}
+		started=true;
+	}
+	
+	/**
+	 * @return false if the consumer already is a member
+	 */
+	public boolean addMember(Consumer consumer)
+	{
+		synchronized (members) 
+		{
+			if (members.contains(consumer))
+				return false;
+			members.add(consumer);
+		}
+		rebalance();
+		return true;
+	}
+	
+	/**
+	 * Assigns the partitions round robin to the active members, in order of consumer ID.
+	 */
+	public void rebalance()
+	{
+		List<Consumer> activeMembers = new ArrayList<Consumer>();
+		synchronized (members) 
+		{
+			for (Consumer member : members)
+			{
+				if (member.isActive())
+					activeMembers.add(member);
+			}
+		}
+		Collections.sort(activeMembers, new Comparator<Consumer>() {
+			public int compare(Consumer first, Consumer second) {
+				return Integer.compare(first.getConsumerID(), second.getConsumerID());
+			}
+		});
+		
+		Consumer[] newAssignment = new Consumer[partitionedTopic.getPartitionCount()];
+		if (!activeMembers.isEmpty())
+		{
+			for (int i=0; i<newAssignment.length; i++)
+			{
+				newAssignment[i] = activeMembers.get(i % activeMembers.size());
+			}
+		}
+		
+		assignmentLock.lock();
+		try {
+			assignment = newAssignment;
+			assignmentChanged.signalAll();
+		} finally {
+			assignmentLock.unlock();
+		}
+		System.out.println("Group '" + name + "' of topic " + partitionedTopic.getTopic() + " rebalanced to " + activeMembers.size() + " active members.");
+	}
+	
+	public Consumer getOwner(int partition)
+	{
+		return assignment[partition];
+	}
+	
+	/**
+	 * Blocks until the partition has an owner or the queue stops.
+	 */
+	public Consumer awaitOwner(int partition) throws InterruptedException
+	{
+		assignmentLock.lock();
+		try {
+			while (assignment[partition] == null && QueueExt.getInstance().isRunning())
+			{
+				assignmentChanged.await();
+			}
+			return assignment[partition];
+		} finally {
+			assignmentLock.unlock();
+		}
+	}
+	
+	/**
+	 * Wakes the workers waiting for an owner, so that they can stop.
+	 */
+	public void shutdown()
+	{
+		assignmentLock.lock();
+		try {
+			assignmentChanged.signalAll();
+		} finally {
+			assignmentLock.unlock();
+		}
+	}
+	
+	public String getName() 
+	{
+		return name;
+	}
+	
+	public PartitionedTopic getPartitionedTopic() 
+	{
+		return partitionedTopic;
+	}
+	
+	@Override
+	public String toString() {
+		return "Group '" + name + "'";
+	}
+}
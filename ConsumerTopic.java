@@ -1,7 +1,5 @@
 package src;
 
-import java.util.List;
-
 /**
  * Thread started by Consumer to listen to each subscribed TopicQueue 
  * @author apebbati
@@ -11,12 +9,36 @@ public class ConsumerTopic implements Runnable
 {
 	private Consumer consumer;
 	private TopicQueue topicQueue;
-	private int lastReadMessageID=-1;
+	/**
+	 * Next sequence to read, only used when the topic is in RING mode.
+	 */
+	private Sequence sequence;
+	/**
+	 * History position after the last message read. In RING mode, the position the consumer stopped 
+	 * reading the ring at when it was disabled. -1 to read the whole retained history.
+	 */
+	private volatile long nextHistoryPosition=-1;
+	/**
+	 * Messages waiting for the consumer's batch handler
+	 */
+	private MessageBatch batch;
+	/**
+	 * How this loop waits for the next message, signalled by the topic when one is up
+	 */
+	private IdleStrategy idleStrategy;
+	private DiagnosticLog diagnosticLog;
 	
-	ConsumerTopic(Consumer consumer, TopicQueue topicQueue)
+	ConsumerTopic(Consumer consumer, TopicQueue topicQueue, DiagnosticLog diagnosticLog)
 	{
 		this.consumer=consumer;
 		this.topicQueue=topicQueue;
+		this.diagnosticLog=diagnosticLog;
+		this.batch=new MessageBatch(consumer, topicQueue.getTopic());
+		if (topicQueue.isRingMode())
+		{
+			this.sequence = new Sequence(0);
+			topicQueue.addGatingSequence(sequence);
+		}
 	}
 	
 	/**
@@ -24,31 +46,82 @@ public class ConsumerTopic implements Runnable
 	 */
 	public void doReadHistory()
 	{
-		List<Message> history = topicQueue.getHistory();
-		int index=0;
+		MessageHistory history = topicQueue.getHistory();
+		long position = history.getResumePosition(nextHistoryPosition);
+		long end = Long.MAX_VALUE;
+		Message message;
+		
+		// The ring holds every sequence from the released one on, the history the ones before it. 
+		// Messages this consumer read in the ring before it was disabled are before nextHistoryPosition.
+		if (topicQueue.isRingMode())
+			end = topicQueue.getHistoryPosition(topicQueue.getReleasedSequence());
 		
-		if (lastReadMessageID != -1)
+		for (; position<Math.min(end, history.getEndPosition()); position++)
 		{
-			for (index=history.size()-1; index>=0; index--)
+			message = history.get(position);
+			if (message == null)
 			{
-				if ((history.get(index)).getMessageID() == lastReadMessageID)
-				{
-					index++;
-					break;
-				}
+				// Segment released while reading
+				position = Math.max(position, history.getFirstPosition()-1);
+				continue;
 			}
+			deliver(message);
+			nextHistoryPosition=position+1;
 		}
 		
-		int msgID;
-		for (int i=index; i<history.size(); i++)
+		if (diagnosticLog.isEnabled())
+			diagnosticLog.log(consumer + " successfully consumed missed messages from topic " + topicQueue.getTopic());
+	}
+	
+	/**
+	 * Hands the message to the consumer's handler for this topic, or adds it to the batch.
+	 * Dependent consumers must be done with a message before the next stage starts, 
+	 * so on topics with a dependency every batch is a single message.
+	 * Expired messages are skipped, but still count as read.
+	 */
+	private void deliver(Message message)
+	{
+		if (topicQueue.isExpired(message))
+			return;
+		
+		BatchDelivery batchDelivery = consumer.getBatchDelivery(topicQueue.getTopic());
+		if (batchDelivery == null)
 		{
-			msgID=history.get(i).getMessageID();
-			System.out.println(consumer + " has consumed message " + history.get(i).getMessageID() + 
-					" from topic " + topicQueue.getTopic());
-			lastReadMessageID=msgID;
+			batch.flush();
+			consumer.handleMessage(topicQueue.getTopic(), message);
+		}
+		else
+		{
+			batch.add(message, batchDelivery);
+			if (topicQueue.hasDependency())
+				batch.flush();
 		}
 		
-		System.out.println(consumer + " successfully consumed missed messages from topic " + topicQueue.getTopic());
+		if (diagnosticLog.isEnabled())
+			diagnosticLog.log(consumer + " has consumed message " + message.getMessageID() + " from topic " + topicQueue.getTopic());
+	}
+	
+	/**
+	 * Number of messages in the topic after the last one read by this consumer.
+	 * Counted by history position, message IDs are not in the order messages are queued.
+	 */
+	public long getLag()
+	{
+		long next = nextHistoryPosition;
+		if (next == -1)
+			next = topicQueue.getHistory().getFirstPosition();
+		
+		return Math.max(0, topicQueue.getHeadPosition() - next);
+	}
+	
+	public Consumer getConsumer() 
+	{
+		return consumer;
+	}
+	
+	public TopicQueue getTopicQueue() 
+	{
+		return topicQueue;
 	}
 	
 	/**
@@ -65,64 +138,110 @@ public class ConsumerTopic implements Runnable
 		return true;
 	}
 	
+	/**
+	 * Compared by history position, message IDs are not in the order messages are queued.
+	 */
+	private boolean isUnread(long activePosition)
+	{
+		return activePosition != -1 && activePosition >= nextHistoryPosition;
+	}
+	
+	/**
+	 * Consumes every message published to the ring after this consumer's sequence.
+	 * @return Number of messages read from the ring
+	 */
+	private int consumeFromRing()
+	{
+		long start = sequence.get();
+		long next = start;
+		long published = topicQueue.getPublishedSequence();
+		Message message;
+		while (next < published)
+		{
+			message = topicQueue.getRingMessage(next);
+			deliver(message);
+			sequence.set(++next);
+		}
+		if (next > start)
+			nextHistoryPosition = topicQueue.getHistoryPosition(next);
+		return (int) (published - start);
+	}
+	
+	/**
+	 * The idle strategy is registered with the topic only while the loop runs, 
+	 * so a subscription that is never run doesn't stay in the topic's list.
+	 */
 	@Override
 	public void run() 
+	{
+		idleStrategy=topicQueue.newSubscriberIdleStrategy();
+		try {
+			consume();
+		} finally {
+			topicQueue.removeSubscriberIdleStrategy(idleStrategy);
+		}
+	}
+	
+	private void consume()
 	{
 		Message message;
+		long activePosition;
+		int workCount;
 		while(QueueExt.getInstance().isRunning())
 		{		
-			while (QueueExt.getInstance().isRunning() && !isActiveDependentConsumer())
-			{
-				synchronized (topicQueue) 
-				{
-					try {
-						topicQueue.wait();
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}
-				}
+			workCount=0;
+			try {
+				topicQueue.awaitDependencyTurn(this);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
 			}
 			if (!consumer.isActive())
 			{
-				synchronized (consumer) 
+				// An inactive consumer must not hold back the ring. It reads the history from where it stopped.
+				if (topicQueue.isRingMode())
 				{
-					try {
-						synchronized (topicQueue) 
-						{
-							topicQueue.notifyAll();
-						}
-						consumer.wait();
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}
-					doReadHistory();
+					nextHistoryPosition = topicQueue.getHistoryPosition(sequence.get());
+					topicQueue.removeGatingSequence(sequence);
 				}
+				batch.flush();
+				try {
+					topicQueue.signalDependencyTurn();
+					consumer.awaitActive();
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+				if (topicQueue.isRingMode())
+					topicQueue.addGatingSequence(sequence);
+				doReadHistory();
 			}
 			
-			// Peeks into the queue only if the active message ID is more than last read message ID
-			if (topicQueue.getActiveMessageID()>lastReadMessageID)
+			if (topicQueue.isRingMode())
+			{
+				workCount=consumeFromRing();
+				// The topic's loop releases what was read
+				if (workCount > 0)
+					topicQueue.signalIdleStrategy();
+			}
+			// Peeks into the queue only if the active message is not the last one read
+			else if (isUnread(activePosition = topicQueue.getActivePosition()))
 			{
 				message = topicQueue.peek();
-				System.out.println("Consumer " + consumer.getConsumerID() + " has consumed message " + message.getMessageID() + 
-						" from topic " + topicQueue.getTopic());
-				lastReadMessageID=message.getMessageID();
+				deliver(message);
+				nextHistoryPosition=activePosition+1;
+				workCount=1;
 				if (topicQueue.hasDependency() && isActiveDependentConsumer())
 				{
-					topicQueue.getDependency().postConsumption(consumer);
-					synchronized (topicQueue) 
-					{
-						topicQueue.notifyAll();
-					}
+					Dependency dependency = topicQueue.getDependency();
+					int nextStage = dependency.postConsumption(consumer);
+					if (nextStage != Dependency.STAGE_NOT_COMPLETE)
+						topicQueue.signalDependencyTurn(dependency.getStageConsumers(nextStage));
 				}
 			}
+			batch.flushIfDue();
 			
-			
-			try {
-				Thread.sleep(QueueExt.getSleepPeriod());
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
+			idleStrategy.idle(workCount);
 		}
+		batch.flush();
 	}
 	
 }
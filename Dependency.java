@@ -1,126 +1,188 @@
 package src;
 
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
-import java.util.Stack;
 
-public class Dependency extends Stack<Set<Consumer>>
+/**
+ * Order in which the consumers of a topic consume each message.
+ * The order string is compiled once into stages of consumer bitmasks. Stage 0 is the
+ * last set in the string, which consumes first. Progress on the current message is a
+ * reusable bitmask of the consumers yet to consume and the index of the current stage,
+ * so moving through the order does not allocate.
+ * @author apebbati
+ *
+ */
+public class Dependency
 {
+	/**
+	 * Returned by postConsumption when the current stage still has consumers to wait for
+	 */
+	public static final int STAGE_NOT_COMPLETE = -1;
+	private static final Consumer[] NO_CONSUMERS = new Consumer[0];
+	
 	private TopicQueue topicQueue;
 	private String dependencyOrder;
-	private List<Set<Consumer>> dependencyOrderList;
-	private Set<Consumer> activeDependencies;
 	private boolean isDependencyActive;
 	
+	/**
+	 * Consumers of the plan, by plan index
+	 */
+	private Consumer[] consumers;
+	/**
+	 * Plan index of every consumer ID, -1 if the consumer is not part of the order
+	 */
+	private int[] indexByConsumerID;
+	/**
+	 * Stage of every plan index
+	 */
+	private int[] stageByIndex;
+	/**
+	 * Consumers of every stage, as bitmask words over plan indices
+	 */
+	private long[][] stageMasks;
+	private Consumer[][] stageConsumers;
+	
+	/**
+	 * Consumers that are still to consume the current message
+	 */
+	private final long[] pending;
+	/**
+	 * Stage whose turn it is. Equal to the number of stages when the message is done.
+	 */
+	private volatile int currentStage;
+	
 	private final String PROCESS_AFTER="->";
 	private final String SEPARATOR=",";
 	
 	public Dependency (String dependencyOrder, TopicQueue topicQueue)
 	{
-		super();
 		this.dependencyOrder=dependencyOrder;
 		this.topicQueue=topicQueue;
-		init();
+		compile();
+		this.pending = new long[wordCount(consumers.length)];
+		this.currentStage = stageMasks.length;
 	}
 	
-	private void init()
+	private static int wordCount(int bits)
 	{
-		activeDependencies = new HashSet<Consumer>();
-		dependencyOrderList = new ArrayList<Set<Consumer>>();
-		createDependencyOrderList();
+		return (bits + 63) >>> 6;
 	}
 	
-	private void initDependencyOrderList() 
+	private static boolean isSet(long[] mask, int index)
 	{
-		isDependencyActive=false;
-		dependencyOrderList.clear();
-		dependencyOrder = dependencyOrder.trim().replace(" ", "");
+		return (mask[index >>> 6] & (1L << index)) != 0;
 	}
 	
 	/**
-	 * Creates the dependency order list from the dependency order string.
+	 * Compiles the dependency order string into the stages of the plan.
 	 */
-	private void createDependencyOrderList() 
+	private void compile()
 	{
-		initDependencyOrderList();
+		dependencyOrder = dependencyOrder.trim().replace(" ", "");
+		isDependencyActive=false;
+		consumers = NO_CONSUMERS;
+		indexByConsumerID = new int[0];
+		stageByIndex = new int[0];
+		stageMasks = new long[0][];
+		stageConsumers = new Consumer[0][];
+		
+		List<List<Consumer>> stages = new ArrayList<List<Consumer>>();
+		List<Consumer> planConsumers = new ArrayList<Consumer>();
 		String[] order = dependencyOrder.split(PROCESS_AFTER);
 		String[] consumerStr;
 		Consumer consumer;
-		Set<Consumer> set;
-		for (int i=0; i<order.length; i++)
+		List<Consumer> stage;
+		// Last set in the string consumes first
+		for (int i=order.length-1; i>=0; i--)
 		{
 			consumerStr=order[i].split(SEPARATOR);
-			set = new HashSet<Consumer>();
+			stage = new ArrayList<Consumer>();
 			
 			try
 			{
 				for (int j=0; j<consumerStr.length; j++)
 				{
 					consumer= topicQueue.getSubscribedConsumer(Integer.parseInt(consumerStr[j].trim()));
-					if (consumer==null)
+					// A consumer listed twice consumes at its earliest turn
+					if (consumer==null || planConsumers.contains(consumer))
 						continue;
-					set.add(consumer);
+					stage.add(consumer);
+					planConsumers.add(consumer);
 				}
-				if (!set.isEmpty())
-					dependencyOrderList.add(set);
+				if (!stage.isEmpty())
+					stages.add(stage);
 			} catch (Exception e)
 			{
 				System.out.println("Invalid dependency string entered. Try again.");
-				this.isDependencyActive=false;
 				return;
 			}
 		}
+		
+		int maxConsumerID = -1;
+		for (Consumer planConsumer : planConsumers)
+		{
+			maxConsumerID = Math.max(maxConsumerID, planConsumer.getConsumerID());
+		}
+		
+		consumers = planConsumers.toArray(new Consumer[planConsumers.size()]);
+		indexByConsumerID = new int[maxConsumerID + 1];
+		Arrays.fill(indexByConsumerID, -1);
+		stageByIndex = new int[consumers.length];
+		stageMasks = new long[stages.size()][wordCount(consumers.length)];
+		stageConsumers = new Consumer[stages.size()][];
+		
+		int index = 0;
+		for (int s=0; s<stages.size(); s++)
+		{
+			stage = stages.get(s);
+			stageConsumers[s] = stage.toArray(new Consumer[stage.size()]);
+			for (int j=0; j<stage.size(); j++, index++)
+			{
+				indexByConsumerID[consumers[index].getConsumerID()] = index;
+				stageByIndex[index] = s;
+				stageMasks[s][index >>> 6] |= 1L << index;
+			}
+		}
 		this.isDependencyActive=true;
 	}
 	
 	/**
-	 * Initializes stack reset 
+	 * Starts the order over for a new message, ignoring any inactive consumers
 	 */
-	private boolean initResetDependencyStack()
+	public synchronized void resetDependencyStack()
 	{
-		activeDependencies.clear();
-		this.clear();
+		if (!isDependencyActive)
+			return;
 		
-		if (dependencyOrderList==null)
-			createDependencyOrderList();
-		
-		return isDependencyActive;
+		Arrays.fill(pending, 0);
+		for (int i=0; i<consumers.length; i++)
+		{
+			if (consumers[i].isActive())
+				pending[i >>> 6] |= 1L << i;
+		}
+		currentStage = nextPendingStage(0);
 	}
 	
 	/**
-	 * Puts 'dependencyOrderList' elements in stack, ignoring any inactive consumers
+	 * First stage from the given one that has consumers left, or the number of stages if none
 	 */
-	public void resetDependencyStack() 
+	private int nextPendingStage(int stage)
 	{
-		if (!initResetDependencyStack())
-			return;		
-		
-		Set<Consumer> consumerSet;
-		Consumer consumer;
-		Iterator<Consumer> itr;
-		for (Set<Consumer> set : dependencyOrderList)
+		long[] mask;
+		for (; stage<stageMasks.length; stage++)
 		{
-			consumerSet = new HashSet<Consumer>();
-			itr = set.iterator();
-			while (itr.hasNext())
+			mask = stageMasks[stage];
+			for (int w=0; w<mask.length; w++)
 			{
-				consumer=itr.next();
-				if (consumer!=null && consumer.isActive())
-				{
-					consumerSet.add(consumer);
-					activeDependencies.add(consumer);
-				}
+				if ((mask[w] & pending[w]) != 0)
+					return stage;
 			}
-			if (!consumerSet.isEmpty())
-				this.push(consumerSet);
 		}
-		
+		return stage;
 	}
 	
-	public String getDependencyOrder() 
+	public String getDependencyOrder()
 	{
 		return dependencyOrder;
 	}
@@ -129,36 +191,65 @@ public class Dependency extends Stack<Set<Consumer>>
 	 * Returns if a dependency is successful or not.
 	 * @return
 	 */
-	public boolean isDependencyActive() 
+	public boolean isDependencyActive()
 	{
 		return isDependencyActive;
 	}
-
+	
 	public boolean isActiveConsumer(Consumer consumer)
 	{
-		if (this.isEmpty() || !this.activeDependencies.contains(consumer) || this.getActiveConsumerSet().contains(consumer))
+		// Read first, it publishes the pending mask written with it
+		int stage = currentStage;
+		if (stage == stageMasks.length)
 			return true;
-		else
-			return false;
+		
+		int index = getIndex(consumer);
+		if (index < 0 || !isSet(pending, index))
+			return true;
+		
+		return stageByIndex[index] == stage;
 	}
-
-	private Set<Consumer> getActiveConsumerSet()
+	
+	private int getIndex(Consumer consumer)
 	{
-		if (this.isEmpty())
-			return null;
-		else
-			return this.peek();
+		int consumerID = consumer.getConsumerID();
+		if (consumerID < 0 || consumerID >= indexByConsumerID.length)
+			return -1;
+		
+		return indexByConsumerID[consumerID];
 	}
 	
-	public synchronized void postConsumption(Consumer consumer) 
+	/**
+	 * Consumers whose turn it is at the given stage. Empty past the last stage.
+	 */
+	public Consumer[] getStageConsumers(int stage)
 	{
-		Set<Consumer> activeConsumerSet= getActiveConsumerSet();
-		if (activeConsumerSet!=null)
-		{
-			activeConsumerSet.remove(consumer);
-			if (activeConsumerSet.isEmpty())
-				this.pop();
-		}
-		activeDependencies.remove(consumer);
+		if (stage >= stageConsumers.length)
+			return NO_CONSUMERS;
+		
+		return stageConsumers[stage];
+	}
+	
+	/**
+	 * Marks the consumer as done with the current message.
+	 * @return The stage whose turn it now is if this completed the current stage, STAGE_NOT_COMPLETE otherwise
+	 */
+	public synchronized int postConsumption(Consumer consumer)
+	{
+		int index = getIndex(consumer);
+		if (index < 0 || !isSet(pending, index))
+			return STAGE_NOT_COMPLETE;
+		
+		pending[index >>> 6] &= ~(1L << index);
+		int stage = currentStage;
+		if (stageByIndex[index] != stage)
+			return STAGE_NOT_COMPLETE;
+		
+		int nextStage = nextPendingStage(stage);
+		if (nextStage == stage)
+			return STAGE_NOT_COMPLETE;
+		
+		currentStage = nextStage;
+		return nextStage;
 	}
 }
@@ -0,0 +1,97 @@
+package src;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Prints diagnostic lines on a background thread, so that the threads logging them 
+ * don't contend on System.out. Lines are dropped rather than waited for when the 
+ * buffer is full, and nothing is buffered while the log is disabled.
+ * @author apebbati
+ *
+ */
+public class DiagnosticLog implements Runnable 
+{
+	private static final int CAPACITY = 8192;
+	private static final int BATCH_SIZE = 256;
+	
+	private final ConcurrentArrayQueue<String> lines = new ConcurrentArrayQueue<String>(CAPACITY);
+	private final LongAdder droppedLines = new LongAdder();
+	private volatile boolean enabled = true;
+	private volatile boolean running = true;
+	private final Thread thread;
+	
+	public DiagnosticLog()
+	{
+		thread = new Thread(this, "diagnostic-log");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	public boolean isEnabled() 
+	{
+		return enabled;
+	}
+	
+	public void setEnabled(boolean enabled) 
+	{
+		this.enabled = enabled;
+	}
+	
+	/**
+	 * Callers building the line should check isEnabled first.
+	 */
+	public void log(String line)
+	{
+		if (enabled && !lines.offer(line))
+			droppedLines.increment();
+	}
+	
+	public long getDroppedLines()
+	{
+		return droppedLines.sum();
+	}
+	
+	@Override
+	public void run() 
+	{
+		List<String> batch = new ArrayList<String>(BATCH_SIZE);
+		StringBuilder output = new StringBuilder();
+		String line;
+		while (running || !lines.isEmpty())
+		{
+			try {
+				line = lines.poll(QueueExt.getSleepPeriod(), TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				line = null;
+			}
+			if (line == null)
+				continue;
+			
+			batch.add(line);
+			lines.drainTo(batch, BATCH_SIZE - 1);
+			for (int i=0; i<batch.size(); i++)
+			{
+				output.append(batch.get(i)).append(System.lineSeparator());
+			}
+			System.out.print(output);
+			batch.clear();
+			output.setLength(0);
+		}
+	}
+	
+	/**
+	 * Prints the lines still buffered and stops the thread.
+	 */
+	public void close()
+	{
+		running = false;
+		try {
+			thread.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package src;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * FIFO file of messages that did not fit in the main queue.
+ * Record layout: length of the encoded message, followed by MessageCodec bytes.
+ * The file is truncated whenever it has been read to the end, and records left 
+ * in it by a previous run are read back first.
+ * A record that doesn't decode is skipped. A length that doesn't fit the file leaves 
+ * no way to find the next record, so the file is cut off there, like a torn write.
+ * @author apebbati
+ *
+ */
+public class DiskSpillBuffer 
+{
+	private RandomAccessFile file;
+	private long readPosition=0;
+	private long writePosition=0;
+	private volatile int size=0;
+	/**
+	 * Decoded message at 'readPosition', kept when the main queue has no room for it
+	 */
+	private Message head;
+	private int headLength;
+	
+	public DiskSpillBuffer(File spillFile) throws IOException
+	{
+		File directory = spillFile.getParentFile();
+		if (directory != null && !directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create directory " + directory);
+		
+		file = new RandomAccessFile(spillFile, "rw");
+		recover();
+	}
+	
+	/**
+	 * Counts the records of a previous run and cuts off a torn write at the end.
+	 * Their IDs are reserved, so new messages are not mistaken for ones already consumed.
+	 */
+	private void recover() throws IOException
+	{
+		long length = file.length();
+		int recordLength;
+		while (writePosition + 4 <= length)
+		{
+			file.seek(writePosition);
+			recordLength = file.readInt();
+			if (recordLength < 8 || writePosition + 4 + recordLength > length)
+				break;
+			
+			// Encoded messages start with their ID
+			Message.reserveID(file.readLong());
+			writePosition += 4 + recordLength;
+			size++;
+		}
+		file.setLength(writePosition);
+	}
+	
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+	
+	public int size()
+	{
+		return size;
+	}
+	
+	public synchronized void append(Message message) throws IOException
+	{
+		appendAll(Collections.singletonList(message));
+	}
+	
+	/**
+	 * Appends the messages with a single write. If it fails, none of them count as appended.
+	 */
+	public synchronized void appendAll(List<Message> messages) throws IOException
+	{
+		byte[][] encoded = new byte[messages.size()][];
+		int length = 0;
+		for (int i=0; i<encoded.length; i++)
+		{
+			encoded[i] = MessageCodec.encode(messages.get(i));
+			length += 4 + encoded[i].length;
+		}
+		
+		ByteBuffer records = ByteBuffer.allocate(length);
+		for (int i=0; i<encoded.length; i++)
+		{
+			records.putInt(encoded[i].length);
+			records.put(encoded[i]);
+		}
+		
+		file.seek(writePosition);
+		file.write(records.array());
+		writePosition += length;
+		size += encoded.length;
+	}
+	
+	/**
+	 * Moves messages, oldest first, into the queue for as long as it has room.
+	 * @return Number of messages moved
+	 */
+	public synchronized int drainTo(BlockingQueue<Message> queue) throws IOException
+	{
+		int moved = 0;
+		while (size > 0)
+		{
+			if (head == null && !readHead())
+				continue;
+			if (!queue.offer(head))
+				break;
+			
+			readPosition += 4 + headLength;
+			head = null;
+			size--;
+			moved++;
+		}
+		
+		if (size == 0 && writePosition > 0)
+		{
+			file.setLength(0);
+			readPosition=0;
+			writePosition=0;
+		}
+		return moved;
+	}
+	
+	/**
+	 * @return false if the record was corrupt and has been dropped
+	 */
+	private boolean readHead() throws IOException
+	{
+		file.seek(readPosition);
+		headLength = readPosition + 4 <= writePosition ? file.readInt() : -1;
+		if (headLength < 8 || readPosition + 4 + headLength > writePosition)
+		{
+			System.out.println("Corrupt record length at " + readPosition + " in the spill file. " + size + " spilled messages are dropped.");
+			writePosition = readPosition;
+			file.setLength(writePosition);
+			size = 0;
+			return false;
+		}
+		
+		byte[] bytes = new byte[headLength];
+		file.readFully(bytes);
+		try {
+			head = MessageCodec.decode(ByteBuffer.wrap(bytes));
+		} catch (RuntimeException e) {
+			System.out.println("Corrupt record at " + readPosition + " in the spill file, skipped.");
+			e.printStackTrace();
+			readPosition += 4 + headLength;
+			size--;
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Moves the unread records to the start of the file, so that the next run reads them only once.
+	 */
+	private void compact() throws IOException
+	{
+		byte[] chunk = new byte[64 * 1024];
+		long from = readPosition;
+		long to = 0;
+		int read;
+		while (from < writePosition)
+		{
+			file.seek(from);
+			read = file.read(chunk, 0, (int) Math.min(chunk.length, writePosition - from));
+			file.seek(to);
+			file.write(chunk, 0, read);
+			from += read;
+			to += read;
+		}
+		file.setLength(to);
+		writePosition = to;
+		readPosition = 0;
+	}
+	
+	public synchronized void close()
+	{
+		try {
+			if (readPosition > 0)
+				compact();
+			file.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package src;
+
+/**
+ * When a CommitLog forces its writes from the page cache to disk.
+ * @author apebbati
+ *
+ */
+public enum FsyncPolicy 
+{
+	/**
+	 * After every appended message
+	 */
+	PER_MESSAGE,
+	
+	/**
+	 * After every 'fsyncBatchSize' appended messages
+	 */
+	PER_BATCH,
+	
+	/**
+	 * At most once every 'fsyncIntervalMillis'
+	 */
+	INTERVAL
+}
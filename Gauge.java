@@ -0,0 +1,11 @@
+package src;
+
+/**
+ * Metric whose value is read when a snapshot is taken.
+ * @author apebbati
+ *
+ */
+public interface Gauge 
+{
+	long getValue();
+}
@@ -0,0 +1,109 @@
+package src;
+
+/**
+ * Thread started by a ConsumerGroup to consume one partition on behalf of the member that owns it.
+ * The worker's sequence is the group's position in the partition, so it is kept across reassignments.
+ * @author apebbati
+ *
+ */
+public class GroupPartitionWorker implements Runnable 
+{
+	private ConsumerGroup group;
+	private int partition;
+	private TopicQueue partitionQueue;
+	private Sequence sequence;
+	/**
+	 * Messages waiting for the batch handler of 'batchOwner'
+	 */
+	private MessageBatch batch;
+	private Consumer batchOwner;
+	private IdleStrategy idleStrategy;
+	
+	GroupPartitionWorker(ConsumerGroup group, int partition, TopicQueue partitionQueue)
+	{
+		this.group=group;
+		this.partition=partition;
+		this.partitionQueue=partitionQueue;
+		this.sequence=new Sequence(0);
+		partitionQueue.addGatingSequence(sequence);
+		this.idleStrategy=partitionQueue.newSubscriberIdleStrategy();
+	}
+	
+	/**
+	 * Consumes every message published to the partition after the group's sequence.
+	 * @return Number of messages consumed
+	 */
+	private int consume(Consumer owner)
+	{
+		long start = sequence.get();
+		long next = start;
+		long published = partitionQueue.getPublishedSequence();
+		String topic = group.getPartitionedTopic().getTopic();
+		DiagnosticLog log = QueueExt.getInstance().getDiagnosticLog();
+		BatchDelivery delivery;
+		Message message;
+		while (next < published)
+		{
+			message = partitionQueue.getRingMessage(next);
+			if (partitionQueue.isExpired(message))
+			{
+				sequence.set(++next);
+				continue;
+			}
+			delivery = owner.getBatchDelivery(topic);
+			if (delivery == null)
+			{
+				if (batch != null)
+					batch.flush();
+				owner.handleMessage(topic, message);
+			}
+			else
+			{
+				if (batch == null || batchOwner != owner)
+				{
+					if (batch != null)
+						batch.flush();
+					batch = new MessageBatch(owner, topic);
+					batchOwner = owner;
+				}
+				batch.add(message, delivery);
+			}
+			if (log.isEnabled())
+				log.log(owner + " has consumed message " + message.getMessageID() + " from topic " + 
+						topic + " (partition " + partition + ", " + group + ")");
+			sequence.set(++next);
+		}
+		return (int) (published - start);
+	}
+	
+	@Override
+	public void run() 
+	{
+		Consumer owner;
+		int workCount;
+		while (QueueExt.getInstance().isRunning())
+		{
+			workCount=0;
+			// The batch is not held while the partition moves to another member
+			if (batch != null && group.getOwner(partition) != batchOwner)
+				batch.flush();
+			try {
+				owner = group.awaitOwner(partition);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+				continue;
+			}
+			if (owner != null)
+				workCount=consume(owner);
+			if (workCount > 0)
+				partitionQueue.signalIdleStrategy();
+			if (batch != null)
+				batch.flushIfDue();
+			
+			idleStrategy.idle(workCount);
+		}
+		if (batch != null)
+			batch.flush();
+		partitionQueue.removeSubscriberIdleStrategy(idleStrategy);
+	}
+}
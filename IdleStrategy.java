@@ -0,0 +1,22 @@
+package src;
+
+/**
+ * What a polling loop does after a pass, depending on whether the pass found work.
+ * An instance belongs to a single loop thread.
+ * @author apebbati
+ *
+ */
+public interface IdleStrategy 
+{
+	/**
+	 * Called by the loop thread after every pass.
+	 * @param workCount - Units of work the pass did, zero if it found nothing to do
+	 */
+	void idle(int workCount);
+	
+	/**
+	 * Called by other threads when there may be work for the loop. 
+	 * Only strategies that park the loop thread need to act on it.
+	 */
+	void signal();
+}
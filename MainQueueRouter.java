@@ -0,0 +1,176 @@
+package src;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Thread to push new elements in main queue to corresponding topic queues.
+ * Messages for a full topic are held back per topic, so that one slow topic 
+ * doesn't stop the routing to the others. Order within a topic is kept.
+ * @author apebbati
+ *
+ */
+public class MainQueueRouter implements Runnable 
+{
+	/**
+	 * Maximum number of messages moved from the main queue to topic queues per pass
+	 */
+	private static final int BATCH_SIZE = 256;
+	
+	private QueueExt queue;
+	private BlockingQueue<Message> mainQueue;
+	/**
+	 * Messages waiting for room in their topic. Only accessed by the router thread.
+	 */
+	private Map<TopicQueue, Deque<Message>> pending;
+	private int pendingCount=0;
+	/**
+	 * Held back messages allowed before the router blocks on a full topic
+	 */
+	private int maxPending;
+	/**
+	 * How the router waits between retries while it holds back or has spilled messages.
+	 * With nothing held back it blocks on the main queue instead.
+	 */
+	private volatile IdleStrategy idleStrategy;
+	/**
+	 * Set while the router retries instead of blocking on the main queue, so producers know to signal it
+	 */
+	private volatile boolean retrying=false;
+	
+	public MainQueueRouter(QueueExt queue, BlockingQueue<Message> mainQueue, int maxPending, IdleStrategy idleStrategy)
+	{
+		this.queue=queue;
+		this.mainQueue=mainQueue;
+		this.maxPending=maxPending;
+		this.idleStrategy=idleStrategy;
+		this.pending=new HashMap<TopicQueue, Deque<Message>>();
+	}
+	
+	public void setIdleStrategy(IdleStrategy idleStrategy)
+	{
+		IdleStrategy previous = this.idleStrategy;
+		this.idleStrategy = idleStrategy;
+		// The router may be waiting on the old one
+		previous.signal();
+	}
+	
+	/**
+	 * Called after a message was added to the main queue. Only wakes a router that is retrying.
+	 */
+	public void signal()
+	{
+		if (retrying)
+			idleStrategy.signal();
+	}
+	
+	@Override
+	public void run() 
+	{
+		List<Message> batch = new ArrayList<Message>(BATCH_SIZE);
+		int workCount;
+		while (queue.isRunning())
+		{
+			try {
+				queue.drainSpillBuffer();
+				// With a spill file, messages can arrive on disk without waking a take()
+				retrying = pendingCount != 0 || queue.hasSpillBuffer();
+				if (!retrying)
+				{
+					// Blocks until a message arrives
+					batch.add(mainQueue.take());
+				}
+				// Then drains whatever else is already waiting
+				mainQueue.drainTo(batch, BATCH_SIZE - batch.size());
+				
+				workCount = retryPending() + batch.size();
+				for (int i=0; i<batch.size(); i++)
+				{
+					route(batch.get(i));
+				}
+				batch.clear();
+				
+				if (retrying)
+				{
+					// Comes back to retry the held back or spilled messages
+					idleStrategy.idle(workCount);
+					if (Thread.interrupted())
+						break;
+				}
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+	}
+	
+	private void route(Message message) throws InterruptedException
+	{
+		for (TopicQueue topicQueue : queue.resolveTopicQueues(message))
+		{
+			route(message, topicQueue);
+		}
+	}
+	
+	private void route(Message message, TopicQueue topicQueue) throws InterruptedException
+	{
+		Deque<Message> waiting = pending.get(topicQueue);
+		if ((waiting == null || waiting.isEmpty()) && topicQueue.offer(message))
+			return;
+		
+		if (pendingCount < maxPending)
+		{
+			if (waiting == null)
+			{
+				waiting = new ArrayDeque<Message>();
+				pending.put(topicQueue, waiting);
+			}
+			waiting.addLast(message);
+			pendingCount++;
+			return;
+		}
+		
+		// Too many messages held back, fall back to waiting for this topic
+		if (waiting != null)
+		{
+			while (!waiting.isEmpty())
+			{
+				topicQueue.put(waiting.peekFirst());
+				waiting.pollFirst();
+				pendingCount--;
+			}
+		}
+		topicQueue.put(message);
+	}
+	
+	/**
+	 * Moves held back messages into their topics as long as they have room
+	 * @return Number of messages moved
+	 */
+	private int retryPending()
+	{
+		int moved = 0;
+		Iterator<Map.Entry<TopicQueue, Deque<Message>>> itr = pending.entrySet().iterator();
+		Map.Entry<TopicQueue, Deque<Message>> entry;
+		Deque<Message> waiting;
+		while (itr.hasNext())
+		{
+			entry = itr.next();
+			waiting = entry.getValue();
+			while (!waiting.isEmpty() && entry.getKey().offer(waiting.peekFirst()))
+			{
+				waiting.pollFirst();
+				pendingCount--;
+				moved++;
+			}
+			if (waiting.isEmpty())
+				itr.remove();
+		}
+		return moved;
+	}
+}
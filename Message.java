@@ -2,49 +2,202 @@ package src;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Message 
 {
-	private static int id ;
 	/**
-	 * Main content of the message.
+	 * Rough heap cost of a message and its fields, used for retention by size
+	 */
+	private static final int BASE_SIZE_IN_BYTES = 96;
+	private static final int JSON_ENTRY_SIZE_IN_BYTES = 64;
+	private static final int PAYLOAD_SIZE_IN_BYTES = 32;
+	
+	/**
+	 * Source of message IDs, handed out without taking a lock. IDs are unique, but they don't give the 
+	 * order within a topic: producers on different threads race to queue their messages, and priority 
+	 * lanes and scheduled delivery reorder them. Subscribers go by history position instead.
+	 */
+	private static final AtomicLong nextID = new AtomicLong();
+	/**
+	 * Main content of the message. Allocated on first use.
 	 */
 	private Map json;
-	private int messageID;
+	/**
+	 * Alternative compact content of the message
+	 */
+	private BinaryPayload payload;
+	private long messageID;
 	private String topicString;
+	/**
+	 * Messages with the same key go to the same partition of a partitioned topic. Optional.
+	 */
+	private String partitionKey;
+	/**
+	 * Lane of the message in a topic with priority lanes. Higher is more urgent, 0 by default.
+	 */
+	private int priority=0;
+	/**
+	 * Time in milliseconds after which the message is not delivered anymore, 0 if it doesn't expire
+	 */
+	private long expiresAt=0;
+	/**
+	 * Creation time in milliseconds
+	 */
+	private long timestamp;
 	
 	public Message(String topic)
 	{
-		this.json = new HashMap();
-		setMessageID();
+		this.messageID = nextID.getAndIncrement();
 		this.topicString = topic;
+		this.timestamp = System.currentTimeMillis();
 	}
-
+	
+	/**
+	 * Recreates a message that was persisted earlier. 
+	 * IDs handed out from now on will be greater than the restored one.
+	 */
+	Message(long messageID, long timestamp, String topic)
+	{
+		this.messageID = messageID;
+		this.topicString = topic;
+		this.timestamp = timestamp;
+		reserveID(messageID);
+	}
+	
 	public Map getJSON() 
 	{
+		if (json == null)
+			json = new HashMap();
 		return json;
 	}
-
+	
+	/**
+	 * Returns true if JSON content was set or requested, without allocating it.
+	 */
+	public boolean hasJSON()
+	{
+		return json != null;
+	}
+	
+	public BinaryPayload getPayload() 
+	{
+		return payload;
+	}
+	
+	public void setPayload(BinaryPayload payload) 
+	{
+		this.payload = payload;
+	}
+	
+	public boolean hasBinaryPayload()
+	{
+		return payload != null;
+	}
+	
 	public String getTopicString() {
 		return topicString;
 	}
-
-	public void setJSON(Map json) 
+	
+	public String getPartitionKey() 
 	{
-		this.json = json;
+		return partitionKey;
 	}
 	
-	private synchronized void setMessageID()
+	public void setPartitionKey(String partitionKey) 
 	{
-		this.messageID = getNewID();
+		this.partitionKey = partitionKey;
 	}
 	
-	private synchronized static int getNewID()
+	public int getPriority() 
 	{
-		return id++;
+		return priority;
 	}
-
-	public int getMessageID() {
+	
+	/**
+	 * Topics without priority lanes ignore it. Above the topic's top lane, the message goes to the top lane.
+	 */
+	public void setPriority(int priority) 
+	{
+		this.priority = priority;
+	}
+	
+	public long getExpiresAt() 
+	{
+		return expiresAt;
+	}
+	
+	/**
+	 * 0 for a message that doesn't expire. Overrides the default time to live of the topic.
+	 */
+	public void setExpiresAt(long expiresAt) 
+	{
+		this.expiresAt = expiresAt;
+	}
+	
+	/**
+	 * Expires the message the given time after its creation.
+	 * @param timeToLiveMillis - 0 or less for no expiry of its own, the topic's default time to live applies then
+	 */
+	public void setTimeToLive(long timeToLiveMillis) 
+	{
+		if (timeToLiveMillis <= 0)
+			this.expiresAt = 0;
+		else
+			this.expiresAt = timestamp + Math.min(timeToLiveMillis, Long.MAX_VALUE - timestamp);
+	}
+	
+	/**
+	 * Expiry time of the message, falling back to the topic's default time to live when it has none of its own.
+	 * @param defaultTimeToLive - 0 for no default
+	 * @return Long.MAX_VALUE if the message doesn't expire
+	 */
+	public long getExpiresAt(long defaultTimeToLive)
+	{
+		if (expiresAt != 0)
+			return expiresAt;
+		if (defaultTimeToLive > 0)
+			return timestamp + defaultTimeToLive;
+		return Long.MAX_VALUE;
+	}
+	
+	public void setJSON(Map json) 
+	{
+		this.json = json;
+	}
+	
+	/**
+	 * Makes sure new messages get IDs above the given one, e.g. of a message that is still to be read back from disk.
+	 */
+	static void reserveID(long messageID)
+	{
+		long current = nextID.get();
+		while (current <= messageID && !nextID.compareAndSet(current, messageID + 1))
+		{
+			current = nextID.get();
+		}
+	}
+	
+	public long getMessageID() {
 		return messageID;
 	}
+	
+	public long getTimestamp() {
+		return timestamp;
+	}
+	
+	/**
+	 * Estimated heap size of the message
+	 */
+	public int getSizeInBytes()
+	{
+		int size = BASE_SIZE_IN_BYTES;
+		if (topicString != null)
+			size += 2 * topicString.length();
+		if (json != null)
+			size += JSON_ENTRY_SIZE_IN_BYTES * json.size();
+		if (payload != null)
+			size += PAYLOAD_SIZE_IN_BYTES + payload.getSizeInBytes();
+		return size;
+	}
 }
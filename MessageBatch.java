@@ -0,0 +1,68 @@
+package src;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Messages of a subscription waiting to be delivered to a BatchMessageHandler.
+ * Only used by the subscription's own thread.
+ * @author apebbati
+ *
+ */
+public class MessageBatch 
+{
+	private final Consumer consumer;
+	private final String topic;
+	private BatchDelivery delivery;
+	private List<Message> messages = new ArrayList<Message>();
+	private long oldestAddedMillis;
+	
+	public MessageBatch(Consumer consumer, String topic)
+	{
+		this.consumer=consumer;
+		this.topic=topic;
+	}
+	
+	/**
+	 * Adds the message, and delivers the batch if that makes it full. 
+	 * Messages already waiting under other limits are delivered first.
+	 */
+	public void add(Message message, BatchDelivery delivery)
+	{
+		if (this.delivery != delivery)
+		{
+			flush();
+			this.delivery = delivery;
+		}
+		
+		if (messages.isEmpty())
+			oldestAddedMillis = System.currentTimeMillis();
+		messages.add(message);
+		if (messages.size() >= delivery.getMaxBatchSize())
+			flush();
+	}
+	
+	/**
+	 * Delivers the batch if its oldest message has waited for the linger time
+	 */
+	public void flushIfDue()
+	{
+		if (!messages.isEmpty() && System.currentTimeMillis() - oldestAddedMillis >= delivery.getMaxLingerMillis())
+			flush();
+	}
+	
+	public void flush()
+	{
+		if (messages.isEmpty())
+			return;
+		
+		List<Message> batch = messages;
+		messages = new ArrayList<Message>(delivery.getMaxBatchSize());
+		consumer.handleBatch(topic, batch, delivery.getHandler());
+	}
+	
+	public boolean isEmpty()
+	{
+		return messages.isEmpty();
+	}
+}
@@ -0,0 +1,133 @@
+package src;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Binary encoding of messages for storage outside the heap.
+ * Layout: message ID, timestamp, topic, the JSON entries, the binary payload, the partition key, the priority and the expiry time. 
+ * Strings and the payload are length-prefixed, with length -1 for null. 
+ * JSON keys and values are stored as their string representation.
+ * The payload bytes are copied as they are.
+ * @author apebbati
+ *
+ */
+public class MessageCodec 
+{
+	private MessageCodec()
+	{
+	}
+	
+	public static byte[] encode(Message message)
+	{
+		byte[] topic = toBytes(message.getTopicString());
+		Map<?, ?> json = message.hasJSON() ? message.getJSON() : null;
+		byte[] payload = message.hasBinaryPayload() ? message.getPayload().getBytes() : null;
+		byte[] partitionKey = toBytes(message.getPartitionKey());
+		int size = 8 + 8 + 4 + length(topic) + 4 + 4 + length(payload) + 4 + length(partitionKey) + 4 + 8;
+		
+		byte[][] entries = new byte[json == null ? 0 : 2 * json.size()][];
+		int i = 0;
+		if (json != null)
+		{
+			for (Map.Entry<?, ?> entry : json.entrySet())
+			{
+				entries[i] = toBytes(String.valueOf(entry.getKey()));
+				entries[i+1] = toBytes(entry.getValue() == null ? null : String.valueOf(entry.getValue()));
+				size += 8 + length(entries[i]) + length(entries[i+1]);
+				i += 2;
+			}
+		}
+		
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.putLong(message.getMessageID());
+		buffer.putLong(message.getTimestamp());
+		putBytes(buffer, topic);
+		buffer.putInt(entries.length / 2);
+		for (byte[] bytes : entries)
+		{
+			putBytes(buffer, bytes);
+		}
+		putBytes(buffer, payload);
+		putBytes(buffer, partitionKey);
+		buffer.putInt(message.getPriority());
+		buffer.putLong(message.getExpiresAt());
+		return buffer.array();
+	}
+	
+	/**
+	 * Reads a message written by encode, starting at the buffer's position.
+	 * @throws BufferUnderflowException if the record ends before its last field
+	 */
+	public static Message decode(ByteBuffer buffer)
+	{
+		long messageID = buffer.getLong();
+		long timestamp = buffer.getLong();
+		Message message = new Message(messageID, timestamp, getString(buffer));
+		
+		int entryCount = buffer.getInt();
+		if (entryCount > 0)
+		{
+			Map<String, String> json = new HashMap<String, String>();
+			String key;
+			for (int i=0; i<entryCount; i++)
+			{
+				key = getString(buffer);
+				json.put(key, getString(buffer));
+			}
+			message.setJSON(json);
+		}
+		
+		byte[] payload = getBytes(buffer);
+		if (payload != null)
+			message.setPayload(new BinaryPayload(payload));
+		message.setPartitionKey(getString(buffer));
+		message.setPriority(buffer.getInt());
+		message.setExpiresAt(buffer.getLong());
+		return message;
+	}
+	
+	private static byte[] toBytes(String str)
+	{
+		return str == null ? null : str.getBytes(StandardCharsets.UTF_8);
+	}
+	
+	private static int length(byte[] bytes)
+	{
+		return bytes == null ? 0 : bytes.length;
+	}
+	
+	private static void putBytes(ByteBuffer buffer, byte[] bytes)
+	{
+		if (bytes == null)
+		{
+			buffer.putInt(-1);
+			return;
+		}
+		buffer.putInt(bytes.length);
+		buffer.put(bytes);
+	}
+	
+	private static String getString(ByteBuffer buffer)
+	{
+		byte[] bytes = getBytes(buffer);
+		return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	private static byte[] getBytes(ByteBuffer buffer)
+	{
+		int length = buffer.getInt();
+		if (length < 0)
+			return null;
+		// A corrupt length must not allocate more than the record holds
+		if (length > buffer.remaining())
+			throw new BufferUnderflowException();
+		
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return bytes;
+	}
+}
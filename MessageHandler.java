@@ -0,0 +1,17 @@
+package src;
+
+/**
+ * Processes the messages a Consumer consumes. 
+ * Each subscription calls its handler from its own thread, one message at a time and in order,
+ * so a handler shared between topics must be thread safe.
+ * @author apebbati
+ *
+ */
+public interface MessageHandler 
+{
+	/**
+	 * @param topic - Topic the consumer subscribed to
+	 * @param message
+	 */
+	void onMessage(String topic, Message message);
+}
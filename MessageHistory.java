@@ -0,0 +1,225 @@
+package src;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Messages pushed out of a TopicQueue, stored as fixed-size segments.
+ * Every message gets a position that never changes. Expired segments 
+ * are released as a whole according to the topic's RetentionPolicy.
+ * Readers keep the position after the last message they read and resume there, 
+ * or at the oldest retained message if that one was released meanwhile.
+ * @author apebbati
+ *
+ */
+public class MessageHistory 
+{
+	public static final int SEGMENT_SIZE = 1024;
+	
+	private List<Segment> segments;
+	private RetentionPolicy retentionPolicy;
+	/**
+	 * Position of the oldest retained message
+	 */
+	private long firstPosition=0;
+	/**
+	 * Position the next appended message will get
+	 */
+	private long endPosition=0;
+	private long bytes=0;
+	/**
+	 * Time to live of the messages without an expiry of their own, 0 for none
+	 */
+	private long defaultTimeToLive=0;
+	/**
+	 * True once a message with an expiry of its own was added
+	 */
+	private boolean hasExpiringMessages=false;
+	
+	public MessageHistory(RetentionPolicy retentionPolicy)
+	{
+		this.segments = new ArrayList<Segment>();
+		this.retentionPolicy = retentionPolicy;
+	}
+	
+	public synchronized void add(Message message)
+	{
+		if (message == null)
+			return;
+		
+		Segment segment = segments.isEmpty() ? null : segments.get(segments.size()-1);
+		if (segment == null || segment.isFull())
+		{
+			segment = new Segment(endPosition);
+			segments.add(segment);
+		}
+		segment.add(message);
+		bytes += message.getSizeInBytes();
+		endPosition++;
+		if (message.getExpiresAt() != 0)
+			hasExpiringMessages = true;
+		
+		expire();
+	}
+	
+	/**
+	 * Returns the message at the given position, or null if it is not retained.
+	 */
+	public synchronized Message get(long position)
+	{
+		if (position < firstPosition || position >= endPosition)
+			return null;
+		
+		// Every segment but the last one is full, so the segment can be computed directly
+		return segments.get((int) ((position - firstPosition) / SEGMENT_SIZE)).get(position);
+	}
+	
+	/**
+	 * Returns the oldest retained position at or after the given one, or the end position if there is none.
+	 * A position before the first one, like -1, resumes at the oldest retained message.
+	 */
+	public synchronized long getResumePosition(long position)
+	{
+		return Math.min(endPosition, Math.max(firstPosition, position));
+	}
+	
+	public synchronized long getFirstPosition() 
+	{
+		return firstPosition;
+	}
+	
+	public synchronized long getEndPosition() 
+	{
+		return endPosition;
+	}
+	
+	public synchronized int size()
+	{
+		return (int) (endPosition - firstPosition);
+	}
+	
+	public synchronized long getSizeInBytes() 
+	{
+		return bytes;
+	}
+	
+	public synchronized RetentionPolicy getRetentionPolicy() 
+	{
+		return retentionPolicy;
+	}
+	
+	public synchronized void setRetentionPolicy(RetentionPolicy retentionPolicy) 
+	{
+		this.retentionPolicy = retentionPolicy;
+		expire();
+	}
+	
+	public synchronized void setDefaultTimeToLive(long defaultTimeToLive) 
+	{
+		this.defaultTimeToLive = defaultTimeToLive;
+		expire();
+	}
+	
+	/**
+	 * Releases the oldest segments that are out of the retention limits, or whose messages all expired.
+	 * Only the head segment is looked at, one segment at a time. The segment being written to is never released.
+	 */
+	public synchronized void expire()
+	{
+		if (retentionPolicy.isUnlimited() && defaultTimeToLive == 0 && !hasExpiringMessages)
+			return;
+		
+		long now = System.currentTimeMillis();
+		Segment head;
+		while (segments.size() > 1)
+		{
+			head = segments.get(0);
+			if (!isExpired(head, now))
+				break;
+			
+			segments.remove(0);
+			bytes -= head.bytes;
+			firstPosition = segments.get(0).basePosition;
+		}
+	}
+	
+	private boolean isExpired(Segment segment, long now)
+	{
+		long maxMessages = retentionPolicy.getMaxMessages();
+		long maxBytes = retentionPolicy.getMaxBytes();
+		long maxAgeMillis = retentionPolicy.getMaxAgeMillis();
+		
+		if (maxMessages > 0 && size() - segment.count >= maxMessages)
+			return true;
+		if (maxBytes > 0 && bytes - segment.bytes >= maxBytes)
+			return true;
+		if (maxAgeMillis > 0 && segment.newestTimestamp < now - maxAgeMillis)
+			return true;
+		if (segment.getExpiresAt(defaultTimeToLive) <= now)
+			return true;
+		
+		return false;
+	}
+	
+	/**
+	 * Fixed-size block of consecutive history positions
+	 */
+	private static class Segment
+	{
+		private final long basePosition;
+		private final Message[] messages;
+		private int count=0;
+		private long bytes=0;
+		private long newestTimestamp=0;
+		/**
+		 * Latest expiry among the messages with one of their own
+		 */
+		private long maxExpiresAt=0;
+		/**
+		 * Newest creation time among the messages that expire by the default time to live, -1 if there are none
+		 */
+		private long newestDefaultTimestamp=-1;
+		
+		Segment(long basePosition)
+		{
+			this.basePosition=basePosition;
+			this.messages=new Message[SEGMENT_SIZE];
+		}
+		
+		boolean isFull()
+		{
+			return count == messages.length;
+		}
+		
+		void add(Message message)
+		{
+			messages[count++] = message;
+			bytes += message.getSizeInBytes();
+			newestTimestamp = Math.max(newestTimestamp, message.getTimestamp());
+			if (message.getExpiresAt() != 0)
+				maxExpiresAt = Math.max(maxExpiresAt, message.getExpiresAt());
+			else
+				newestDefaultTimestamp = Math.max(newestDefaultTimestamp, message.getTimestamp());
+		}
+		
+		/**
+		 * Time by which every message of the segment expired, kept apart from the default 
+		 * time to live so that changing it applies to segments already written.
+		 * @return Long.MAX_VALUE if some message doesn't expire
+		 */
+		long getExpiresAt(long defaultTimeToLive)
+		{
+			if (newestDefaultTimestamp == -1)
+				return maxExpiresAt;
+			if (defaultTimeToLive <= 0)
+				return Long.MAX_VALUE;
+			
+			return Math.max(maxExpiresAt, newestDefaultTimestamp + defaultTimeToLive);
+		}
+		
+		Message get(long position)
+		{
+			return messages[(int) (position - basePosition)];
+		}
+	}
+}
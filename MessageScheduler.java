@@ -0,0 +1,143 @@
+package src;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Thread that holds scheduled messages until their delivery time, then pushes them to the queue.
+ * Producers hand messages over through a lock-free inbox. Only this thread touches the timing wheel,
+ * and it parks until the next tick that can have messages due, or until a producer schedules an earlier one.
+ * A due message the main queue timed out on is retried on the next tick. One the overflow policy
+ * dropped or rejected is reported as undelivered. Due messages keep the message ID they were
+ * created with, so their IDs are not in the order they are delivered in.
+ * Scheduled messages are only kept in memory.
+ * @author apebbati
+ *
+ */
+public class MessageScheduler implements Runnable
+{
+	/**
+	 * Levels of the timing wheel. With 1 ms ticks, four levels cover about 49 days.
+	 */
+	private static final int LEVELS = 4;
+	
+	private final QueueExt queue;
+	private final long tickMillis;
+	private final long startMillis;
+	private final TimingWheel wheel;
+	private final Queue<TimingWheel.Timer> inbox = new ConcurrentLinkedQueue<TimingWheel.Timer>();
+	/**
+	 * Messages scheduled and not pushed yet
+	 */
+	private final AtomicLong pending = new AtomicLong();
+	private volatile Thread thread;
+	/**
+	 * Time the scheduler thread will wake up at on its own. A message due earlier wakes it.
+	 */
+	private volatile long wakeTimeMillis = Long.MAX_VALUE;
+	
+	public MessageScheduler(QueueExt queue, long tickMillis)
+	{
+		this.queue=queue;
+		this.tickMillis=tickMillis;
+		this.startMillis=System.currentTimeMillis();
+		this.wheel=new TimingWheel(LEVELS, 0);
+	}
+	
+	/**
+	 * Holds the message until the delivery time. Can be called from any thread.
+	 */
+	public void schedule(Message message, long deliveryTimeMillis)
+	{
+		// Rounded up, so that the message is never pushed early
+		long deadlineTick = Math.floorDiv(deliveryTimeMillis - startMillis + tickMillis - 1, tickMillis);
+		pending.incrementAndGet();
+		inbox.add(new TimingWheel.Timer(message, deadlineTick));
+		if (deliveryTimeMillis < wakeTimeMillis)
+			wake();
+	}
+	
+	public void wake()
+	{
+		Thread waiting = thread;
+		if (waiting != null)
+			LockSupport.unpark(waiting);
+	}
+	
+	public long getPendingCount()
+	{
+		return pending.get();
+	}
+	
+	private long currentTick()
+	{
+		return (System.currentTimeMillis() - startMillis) / tickMillis;
+	}
+	
+	@Override
+	public void run()
+	{
+		thread = Thread.currentThread();
+		List<Message> due = new ArrayList<Message>();
+		TimingWheel.Timer timer;
+		PushResult result;
+		Message message;
+		long ticks;
+		long waitMillis;
+		while (queue.isRunning())
+		{
+			while ((timer = inbox.poll()) != null)
+			{
+				if (!wheel.add(timer))
+					due.add(timer.getMessage());
+			}
+			wheel.advance(currentTick(), due);
+			
+			for (int i=0; i<due.size(); i++)
+			{
+				message = due.get(i);
+				result = queue.pushMessageToMainQueue(message);
+				if (result == PushResult.TIMED_OUT)
+				{
+					wheel.add(new TimingWheel.Timer(message, wheel.getCurrentTick() + 1));
+					continue;
+				}
+				
+				if (!result.isAccepted())
+				{
+					queue.getMetrics().counter("scheduler.undelivered").increment();
+					System.out.println("Scheduled message " + message.getMessageID() + " was not delivered: " + result + ".");
+				}
+				pending.decrementAndGet();
+			}
+			due.clear();
+			
+			ticks = wheel.ticksUntilNextExpiry();
+			wakeTimeMillis = ticks == Long.MAX_VALUE ? Long.MAX_VALUE : startMillis + (wheel.getCurrentTick() + ticks) * tickMillis;
+			// Set before checking the inbox, so a producer adding to it meanwhile sees the wake time and wakes the thread
+			if (!inbox.isEmpty())
+				continue;
+			
+			if (ticks == Long.MAX_VALUE)
+			{
+				LockSupport.park(this);
+			}
+			else
+			{
+				waitMillis = wakeTimeMillis - System.currentTimeMillis();
+				if (waitMillis > 0)
+					LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(waitMillis));
+			}
+		}
+		thread = null;
+		
+		long dropped = pending.get();
+		if (dropped > 0)
+			System.out.println(dropped + " scheduled messages were not delivered before shutdown.");
+	}
+}
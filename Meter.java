@@ -0,0 +1,62 @@
+package src;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts events with a striped counter, so that marking from many threads doesn't contend.
+ * The rate is worked out on ticks at least one second apart, from the count at the previous tick.
+ * The owner's loop ticks the meter. Reading the rate has no side effects, so every reader sees 
+ * the same value, however often it reads.
+ * @author apebbati
+ *
+ */
+public class Meter 
+{
+	private static final long RATE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+	
+	private final LongAdder count = new LongAdder();
+	private long lastCount=0;
+	private long lastTime=System.nanoTime();
+	private volatile long ratePerSecond=0;
+	
+	public void mark()
+	{
+		count.increment();
+	}
+	
+	public void mark(long events)
+	{
+		count.add(events);
+	}
+	
+	public long getCount()
+	{
+		return count.sum();
+	}
+	
+	/**
+	 * Rate over the interval between the last two ticks
+	 */
+	public long getRatePerSecond()
+	{
+		return ratePerSecond;
+	}
+	
+	/**
+	 * Takes a snapshot of the count if a second has passed since the previous one, and works out the rate between them.
+	 * Called from a single thread.
+	 * @param now - System.nanoTime()
+	 */
+	public void tick(long now)
+	{
+		long elapsed = now - lastTime;
+		if (elapsed >= RATE_INTERVAL_NANOS)
+		{
+			long current = count.sum();
+			ratePerSecond = (current - lastCount) * RATE_INTERVAL_NANOS / elapsed;
+			lastCount = current;
+			lastTime = now;
+		}
+	}
+}
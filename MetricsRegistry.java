@@ -0,0 +1,104 @@
+package src;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters, meters and gauges of the queue. Counters and meters are striped 
+ * (LongAdder), gauges are only evaluated when a snapshot is taken.
+ * Meters appear in snapshots as '.count' and '.ratePerSecond'.
+ * @author apebbati
+ *
+ */
+public class MetricsRegistry implements MetricsRegistryMXBean
+{
+	public static final String JMX_NAME = "src:type=MetricsRegistry";
+	
+	private final Map<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+	private final Map<String, Meter> meters = new ConcurrentHashMap<String, Meter>();
+	private final Map<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+	
+	/**
+	 * Returns the counter, creating it if it doesn't exist yet.
+	 */
+	public LongAdder counter(String name)
+	{
+		LongAdder counter = counters.get(name);
+		if (counter == null)
+		{
+			counters.putIfAbsent(name, new LongAdder());
+			counter = counters.get(name);
+		}
+		return counter;
+	}
+	
+	public void registerMeter(String name, Meter meter)
+	{
+		meters.put(name, meter);
+	}
+	
+	public void registerGauge(String name, Gauge gauge)
+	{
+		gauges.put(name, gauge);
+	}
+	
+	public void remove(String name)
+	{
+		counters.remove(name);
+		meters.remove(name);
+		gauges.remove(name);
+	}
+	
+	@Override
+	public SortedMap<String, Long> getSnapshot()
+	{
+		SortedMap<String, Long> snapshot = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder> entry : counters.entrySet())
+		{
+			snapshot.put(entry.getKey(), entry.getValue().sum());
+		}
+		for (Map.Entry<String, Meter> entry : meters.entrySet())
+		{
+			snapshot.put(entry.getKey() + ".count", entry.getValue().getCount());
+			snapshot.put(entry.getKey() + ".ratePerSecond", entry.getValue().getRatePerSecond());
+		}
+		for (Map.Entry<String, Gauge> entry : gauges.entrySet())
+		{
+			snapshot.put(entry.getKey(), entry.getValue().getValue());
+		}
+		return snapshot;
+	}
+	
+	/**
+	 * Makes the registry available over JMX under JMX_NAME.
+	 */
+	public void registerMBean()
+	{
+		try {
+			ObjectName name = new ObjectName(JMX_NAME);
+			if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+				ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+		} catch (JMException e) {
+			System.out.println("Metrics could not be registered with JMX.");
+			e.printStackTrace();
+		}
+	}
+	
+	public void unregisterMBean()
+	{
+		try {
+			ObjectName name = new ObjectName(JMX_NAME);
+			if (ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+	}
+}
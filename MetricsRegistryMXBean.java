@@ -0,0 +1,16 @@
+package src;
+
+import java.util.Map;
+
+/**
+ * JMX view of the MetricsRegistry.
+ * @author apebbati
+ *
+ */
+public interface MetricsRegistryMXBean 
+{
+	/**
+	 * Current value of every metric, by name
+	 */
+	Map<String, Long> getSnapshot();
+}
@@ -0,0 +1,40 @@
+package src;
+
+/**
+ * What a producer does when the main queue is full.
+ * @author apebbati
+ *
+ */
+public enum OverflowPolicy 
+{
+	/**
+	 * Wait for room for as long as it takes
+	 */
+	BLOCK,
+	
+	/**
+	 * Wait for room for at most the overflow timeout
+	 */
+	BLOCK_WITH_TIMEOUT,
+	
+	/**
+	 * Return straight away without queueing the message
+	 */
+	REJECT,
+	
+	/**
+	 * Discard the oldest queued messages to make room
+	 */
+	DROP_OLDEST,
+	
+	/**
+	 * Discard the message being pushed
+	 */
+	DROP_NEWEST,
+	
+	/**
+	 * Write the message to a buffer on disk, which the router moves back 
+	 * into the main queue as room frees up
+	 */
+	SPILL_TO_DISK
+}
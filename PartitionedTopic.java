@@ -0,0 +1,87 @@
+package src;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Topic split into ring buffer partitions, consumed by consumer groups.
+ * Messages with a partition key always go to the same partition,
+ * other messages are spread round robin.
+ * @author apebbati
+ *
+ */
+public class PartitionedTopic 
+{
+	private final String topic;
+	private final TopicQueue[] partitions;
+	private final AtomicInteger nextPartition = new AtomicInteger();
+	private final Map<String, ConsumerGroup> groups = new ConcurrentHashMap<String, ConsumerGroup>();
+	
+	public PartitionedTopic(String topic, TopicQueue[] partitions)
+	{
+		this.topic=topic;
+		this.partitions=partitions;
+	}
+	
+	public static String getPartitionName(String topic, int partition)
+	{
+		return topic + "#" + partition;
+	}
+	
+	public TopicQueue selectPartition(Message message)
+	{
+		int partition;
+		if (message.getPartitionKey() != null)
+			partition = Math.floorMod(message.getPartitionKey().hashCode(), partitions.length);
+		else
+			partition = Math.floorMod(nextPartition.getAndIncrement(), partitions.length);
+		
+		return partitions[partition];
+	}
+	
+	public String getTopic() 
+	{
+		return topic;
+	}
+	
+	public int getPartitionCount()
+	{
+		return partitions.length;
+	}
+	
+	public TopicQueue getPartition(int partition)
+	{
+		return partitions[partition];
+	}
+	
+	public ConsumerGroup getGroup(String groupName)
+	{
+		return groups.get(groupName);
+	}
+	
+	/**
+	 * Returns the group, creating it if it doesn't exist yet.
+	 */
+	public synchronized ConsumerGroup getOrCreateGroup(String groupName)
+	{
+		ConsumerGroup group = groups.get(groupName);
+		if (group == null)
+		{
+			group = new ConsumerGroup(groupName, this);
+			groups.put(groupName, group);
+		}
+		return group;
+	}
+	
+	public Collection<ConsumerGroup> getGroups()
+	{
+		return groups.values();
+	}
+	
+	@Override
+	public String toString() {
+		return topic + " (" + partitions.length + " partitions)";
+	}
+}
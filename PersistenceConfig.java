@@ -0,0 +1,64 @@
+package src;
+
+import java.io.File;
+
+/**
+ * Settings of the commit logs that persist topics to disk.
+ * @author apebbati
+ *
+ */
+public class PersistenceConfig 
+{
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+	
+	private final File directory;
+	private final FsyncPolicy fsyncPolicy;
+	private final int fsyncBatchSize;
+	private final long fsyncIntervalMillis;
+	private final int segmentSize;
+	
+	/**
+	 * @param directory - Every topic gets a sub directory in here
+	 * @param fsyncPolicy
+	 * @param fsyncBatchSize - Messages per fsync, for PER_BATCH
+	 * @param fsyncIntervalMillis - Time between fsyncs, for INTERVAL
+	 */
+	public PersistenceConfig(File directory, FsyncPolicy fsyncPolicy, int fsyncBatchSize, long fsyncIntervalMillis)
+	{
+		this(directory, fsyncPolicy, fsyncBatchSize, fsyncIntervalMillis, DEFAULT_SEGMENT_SIZE);
+	}
+	
+	public PersistenceConfig(File directory, FsyncPolicy fsyncPolicy, int fsyncBatchSize, long fsyncIntervalMillis, int segmentSize)
+	{
+		this.directory=directory;
+		this.fsyncPolicy=fsyncPolicy;
+		this.fsyncBatchSize=Math.max(1, fsyncBatchSize);
+		this.fsyncIntervalMillis=fsyncIntervalMillis;
+		this.segmentSize=segmentSize;
+	}
+	
+	public File getDirectory() 
+	{
+		return directory;
+	}
+	
+	public FsyncPolicy getFsyncPolicy() 
+	{
+		return fsyncPolicy;
+	}
+	
+	public int getFsyncBatchSize() 
+	{
+		return fsyncBatchSize;
+	}
+	
+	public long getFsyncIntervalMillis() 
+	{
+		return fsyncIntervalMillis;
+	}
+	
+	public int getSegmentSize() 
+	{
+		return segmentSize;
+	}
+}
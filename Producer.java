@@ -1,5 +1,8 @@
 package src;
 
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
 public class Producer 
 {
 	private static Producer instance;
@@ -16,13 +19,61 @@ public class Producer
 		return instance;
 	}
 	
-	public void pushMessage(Message message)
+	/**
+	 * @return What happened to the message. Anything but ACCEPTED comes from the overflow policy of a full queue.
+	 */
+	public PushResult pushMessage(Message message)
 	{
 		if (message == null)
 		{
 			System.out.println("Error: Null cannot be passed into the queue.");
-			return;
+			return PushResult.REJECTED;
+		}
+		return QueueExt.getInstance().pushMessageToMainQueue(message);
+	}
+	
+	/**
+	 * Delivers the message after the delay instead of right away.
+	 * A delay too long to add to the current time holds the message until Long.MAX_VALUE, instead of overflowing into the past.
+	 * @return SCHEDULED, or the result of pushing it right away if the delay is not positive
+	 */
+	public PushResult pushMessage(Message message, long delay, TimeUnit unit)
+	{
+		long now = System.currentTimeMillis();
+		long delayMillis = unit.toMillis(delay);
+		if (delayMillis > Long.MAX_VALUE - now)
+			return pushMessageAt(message, Long.MAX_VALUE);
+		return pushMessageAt(message, now + delayMillis);
+	}
+	
+	/**
+	 * Delivers the message at the given time, in milliseconds since the epoch.
+	 * @return SCHEDULED, or the result of pushing it right away if the time has passed
+	 */
+	public PushResult pushMessageAt(Message message, long deliveryTimeMillis)
+	{
+		if (message == null)
+		{
+			System.out.println("Error: Null cannot be passed into the queue.");
+			return PushResult.REJECTED;
+		}
+		return QueueExt.getInstance().scheduleMessage(message, deliveryTimeMillis);
+	}
+	
+	/**
+	 * Pushes a batch of messages with a single enqueue. Does not block.
+	 * @param messages
+	 * @param allOrNothing - If true, the batch is rejected unless all of it fits in the queue. 
+	 * Otherwise, as many messages as fit are accepted in order.
+	 * @return Number of messages accepted
+	 */
+	public int pushMessages(Collection<Message> messages, boolean allOrNothing)
+	{
+		if (messages == null)
+		{
+			System.out.println("Error: Null cannot be passed into the queue.");
+			return 0;
 		}
-		QueueExt.getInstance().pushMessageToMainQueue(message);
+		return QueueExt.getInstance().pushMessagesToMainQueue(messages, allOrNothing);
 	}
 }
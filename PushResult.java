@@ -0,0 +1,46 @@
+package src;
+
+/**
+ * Outcome of pushing a message to the queue.
+ * @author apebbati
+ *
+ */
+public enum PushResult 
+{
+	ACCEPTED,
+	
+	/**
+	 * Accepted after discarding older messages from the main queue
+	 */
+	ACCEPTED_DROPPED_OLDEST,
+	
+	/**
+	 * Accepted into the disk spill buffer
+	 */
+	SPILLED,
+	
+	/**
+	 * Discarded because the main queue was full
+	 */
+	DROPPED,
+	
+	REJECTED,
+	
+	/**
+	 * No room was freed within the overflow timeout
+	 */
+	TIMED_OUT,
+	
+	/**
+	 * Held by the scheduler until its delivery time, then pushed like a new message
+	 */
+	SCHEDULED;
+	
+	/**
+	 * @return true if the message will be delivered
+	 */
+	public boolean isAccepted()
+	{
+		return this == ACCEPTED || this == ACCEPTED_DROPPED_OLDEST || this == SPILLED || this == SCHEDULED;
+	}
+}
@@ -1,15 +1,20 @@
 package src;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
 /**
  * The main queue implementation.
@@ -18,18 +23,87 @@ import java.util.concurrent.TimeUnit;
  */
 public class QueueExt 
 {
-	private static QueueExt instance;
+	private static volatile QueueExt instance;
 	
 	/**
 	 * Producer will put the incoming messages in here.
 	 */
-	private BlockingQueue<Message> mainQueue;
+	private ConcurrentArrayQueue<Message> mainQueue;
+	/**
+	 * Topic registry. Reads are lock-free, topic creation is serialized on 'topicCreationLock'.
+	 */
 	private Map<String, TopicQueue> topicQueues;
+	private final Object topicCreationLock = new Object();
+	private Map<String, PartitionedTopic> partitionedTopics;
+	/**
+	 * Wildcard topics, which are also in 'topicQueues' under their pattern
+	 */
+	private final TopicMatcher topicMatcher = new TopicMatcher();
+	/**
+	 * Topics every topic string was last routed to, apart from the partition of a partitioned topic.
+	 * Cleared whenever a topic is created.
+	 */
+	private final Map<String, TopicQueue[]> routeCache = new ConcurrentHashMap<String, TopicQueue[]>();
+	private volatile long routeCacheVersion=0;
+	/**
+	 * Distinct topic strings cached before the cache starts over
+	 */
+	private static final int MAX_CACHED_ROUTES = 4096;
+	private static final TopicQueue[] NO_TOPIC_QUEUES = new TopicQueue[0];
 	private List<Consumer> consumerList;
 	private final String defaultTopic="DEFAULT";
 	private int maxSize;
+	/**
+	 * Retention applied to the history of topics created from now on
+	 */
+	private RetentionPolicy defaultRetentionPolicy = RetentionPolicy.UNLIMITED;
+	/**
+	 * Commit log settings for topics created from now on. Null when persistence is disabled.
+	 */
+	private PersistenceConfig persistenceConfig;
+	/**
+	 * Idle strategy of the loops of topics created from now on
+	 */
+	private Supplier<IdleStrategy> defaultIdleStrategy = TopicQueue.SLEEPING_IDLE_STRATEGY;
+	/**
+	 * What producers do when the main queue is full
+	 */
+	private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+	private volatile long overflowTimeoutMillis = 1000;
+	/**
+	 * Holds the messages spilled under SPILL_TO_DISK. Null until a spill file is set.
+	 */
+	private volatile DiskSpillBuffer spillBuffer;
+	/**
+	 * If true, producers put messages straight into their TopicQueue instead of the main queue
+	 */
+	private volatile boolean directRouting = false;
 	private ExecutorService executorService;
-	private boolean running = true;
+	private MetricsRegistry metrics;
+	private DiagnosticLog diagnosticLog;
+	/**
+	 * Time producers spent blocked on a full main queue
+	 */
+	private LongAdder producerBlockNanos;
+	/**
+	 * Runs the subscription workers of all consumers
+	 */
+	private ExecutorService subscriptionExecutor;
+	private WorkerExecutionMode workerExecutionMode = WorkerExecutionMode.PLATFORM;
+	private Future<?> routerFuture;
+	private MainQueueRouter router;
+	/**
+	 * Holds messages pushed with a delay or a delivery time
+	 */
+	private MessageScheduler scheduler;
+	/**
+	 * Resolution of the delivery times of scheduled messages
+	 */
+	private static final long SCHEDULER_TICK_MILLIS = 1;
+	/**
+	 * Read by the loops of every topic, subscriber and the router, so they see shutdown
+	 */
+	private volatile boolean running = true;
 	/**
 	 * Sleep period constant for all the threads throughout the application
 	 */
@@ -50,6 +124,20 @@ public class QueueExt
 		return instance;
 	}
 	
+	/**
+	 * Creates the queue with the given size instead of asking for it, unless it already exists.
+	 */
+	public static synchronized QueueExt getInstance(int maxSize)
+	{
+		if (instance==null)
+		{
+			if (maxSize<1)
+				throw new IllegalArgumentException("Size of the queue must be greater than zero.");
+			instance = new QueueExt(maxSize);
+		}
+		return instance;
+	}
+	
 	private static void createInstance() 
 	{
 		Scanner scanner = new Scanner(System.in);
@@ -64,42 +152,54 @@ public class QueueExt
 			System.out.println("Value entered is not valid. Enter an integer greater than zero.");
 		}
 	}
-
+	
 	public void init()
 	{
-		mainQueue = new LinkedBlockingQueue<Message>(maxSize);
-		topicQueues = new HashMap<String, TopicQueue>();
+		mainQueue = new ConcurrentArrayQueue<Message>(maxSize);
+		topicQueues = new ConcurrentHashMap<String, TopicQueue>();
+		partitionedTopics = new ConcurrentHashMap<String, PartitionedTopic>();
 		executorService = Executors.newCachedThreadPool();
+		subscriptionExecutor = createSubscriptionExecutor(workerExecutionMode);
 		consumerList = new ArrayList<Consumer>();
 		
-		// Thread to push new elements in main queue to corresponding topic queues
-		executorService.submit(new Runnable() {
-			public void run() {
-				QueueExt queueInstance = QueueExt.getInstance();
-				Message message;
-				while(queueInstance.isRunning())
-				{
-					if (queueInstance.getMainQueueSize()!=0)
-					{
-						message=queueInstance.pollMainQueue();
-						queueInstance.putMessageToTopic(message);
-					}
-					
-					try {
-						Thread.sleep(queueInstance.getSleepPeriod());
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}
-				}
+		diagnosticLog = new DiagnosticLog();
+		metrics = new MetricsRegistry();
+		metrics.registerGauge("mainQueue.depth", new Gauge() {
+			public long getValue() {
+				return mainQueue.size();
 			}
 		});
+		producerBlockNanos = metrics.counter("producer.blockNanos");
+		metrics.registerGauge("diagnostics.droppedLines", new Gauge() {
+			public long getValue() {
+				return diagnosticLog.getDroppedLines();
+			}
+		});
+		metrics.registerGauge("mainQueue.spilled", new Gauge() {
+			public long getValue() {
+				DiskSpillBuffer buffer = spillBuffer;
+				return buffer == null ? 0 : buffer.size();
+			}
+		});
+		scheduler = new MessageScheduler(this, SCHEDULER_TICK_MILLIS);
+		metrics.registerGauge("scheduler.pending", new Gauge() {
+			public long getValue() {
+				return scheduler.getPendingCount();
+			}
+		});
+		metrics.registerMBean();
+		
+		// Waits for a producer to signal, or retries after the sleep period like it always did
+		router = new MainQueueRouter(this, mainQueue, maxSize, new BlockingIdleStrategy(getSleepPeriod()));
+		routerFuture = executorService.submit(router);
+		executorService.submit(scheduler);
 	}
 	
 	public boolean isRunning() 
 	{
 		return running;
 	}
-
+	
 	public static long getSleepPeriod() 
 	{
 		return sleepPeriod;
@@ -112,10 +212,10 @@ public class QueueExt
 	
 	public TopicQueue getTopicQueue(String topic)
 	{
-		synchronized (topicQueues) 
-		{
-			return topicQueues.get(topic);
-		}
+		if (topic == null)
+			return null;
+		
+		return topicQueues.get(topic);
 	}
 	
 	/**
@@ -143,7 +243,7 @@ public class QueueExt
 	{
 		synchronized (consumerList) 
 		{
-			Consumer consumer = new Consumer(getConsumerCount());
+			Consumer consumer = new Consumer(getConsumerCount(), subscriptionExecutor);
 			consumerList.add(consumer);
 			
 			System.out.println("Consumer with ID " + consumer.getConsumerID() + " created.");
@@ -163,7 +263,8 @@ public class QueueExt
 	}
 	
 	/**
-	 * Subscribes consumer to the given topic
+	 * Subscribes consumer to the given topic. 
+	 * A wildcard topic, like 'orders.*.created' or 'orders.#', is created on its first subscription.
 	 */
 	public void subscribeConsumerToTopic(int consumerID, String topic)
 	{
@@ -173,12 +274,21 @@ public class QueueExt
 			return;
 		}
 		
+		if (!this.hasTopic(topic) && TopicMatcher.isPattern(topic))
+			createTopic(topic);
+		
 		if (!this.hasTopic(topic))
 		{
 			System.out.println("Topic " + topic + " doesn't exist.");
 			return;
 		}
 		
+		if (getPartitionedTopic(topic) != null)
+		{
+			System.out.println("Topic " + topic + " is partitioned. Subscribe to it through a consumer group.");
+			return;
+		}
+		
 		if (consumer.isRegisteredToTopic(topic))
 		{
 			System.out.println(consumer + " already registered to topic " + topic +".");
@@ -186,7 +296,12 @@ public class QueueExt
 		}
 		
 		getTopicQueue(topic).subscribeConsumer(consumer);
-		consumer.subscribeTopic(getTopicQueue(topic));
+		final ConsumerTopic consumerTopic = consumer.subscribeTopic(getTopicQueue(topic), diagnosticLog);
+		metrics.registerGauge("consumer." + consumerID + "." + topic + ".lag", new Gauge() {
+			public long getValue() {
+				return consumerTopic.getLag();
+			}
+		});
 		System.out.println(consumer + " registered to topic '" + topic + "'.");
 	}
 	
@@ -205,7 +320,28 @@ public class QueueExt
 	 */
 	public void createTopic(String topicString)
 	{
-		synchronized (topicQueues) 
+		createTopic(topicString, TopicStorageMode.LINKED);
+	}
+	
+	/**
+	 * Creates a topic with the given storage mode
+	 * @param topicString
+	 * @param storageMode
+	 */
+	public void createTopic(String topicString, TopicStorageMode storageMode)
+	{
+		createTopic(topicString, storageMode, defaultIdleStrategy);
+	}
+	
+	/**
+	 * Creates a topic whose loops wait with the given idle strategy when they have nothing to do
+	 * @param topicString
+	 * @param storageMode
+	 * @param idleStrategy - Creates a strategy for the topic's loop and for every subscription to it
+	 */
+	public void createTopic(String topicString, TopicStorageMode storageMode, Supplier<IdleStrategy> idleStrategy)
+	{
+		synchronized (topicCreationLock) 
 		{
 			if (isStringEmpty(topicString))
 			{
@@ -213,15 +349,24 @@ public class QueueExt
 				return;
 			}
 			
-			if (topicQueues.containsKey(topicString))
+			if (hasTopic(topicString))
 			{
 				System.out.println("Topic '" + topicString + "' already exists. Choose a unique topic string.");
 				return;
 			}
 			
-			TopicQueue topicQueue = new TopicQueue(getMaxSize(), topicString);
+			boolean isPattern = TopicMatcher.isPattern(topicString);
+			if (isPattern && !TopicMatcher.isValidPattern(topicString))
+			{
+				System.out.println("Invalid wildcard topic '" + topicString + "'. Use '*' for one segment or '#' for any number of segments, e.g. 'orders.*.created' or 'orders.#'.");
+				return;
+			}
+			
+			TopicQueue topicQueue = startTopicQueue(topicString, storageMode, idleStrategy);
 			topicQueues.put(topicString, topicQueue);
-			executorService.submit(topicQueue);
+			if (isPattern)
+				topicMatcher.add(topicString, topicQueue);
+			clearRouteCache();
 			System.out.println("Topic with string '" + topicString + "' created.");
 			if (topicQueues.size()==1) // If this is the first topic to be created, create a default topic. Messages that do not match user created topics will go into default topics
 			{
@@ -230,6 +375,176 @@ public class QueueExt
 		}
 	}
 	
+	/**
+	 * Creates a topic split into ring buffer partitions, to be consumed by consumer groups.
+	 * @param topicString
+	 * @param partitionCount
+	 */
+	public void createPartitionedTopic(String topicString, int partitionCount)
+	{
+		synchronized (topicCreationLock) 
+		{
+			if (isStringEmpty(topicString))
+			{
+				System.out.println("Empty string not allowed for topics. Enter a valid topic string.");
+				return;
+			}
+			
+			if (partitionCount<1)
+			{
+				System.out.println("Enter a number of partitions greater than 0");
+				return;
+			}
+			
+			if (hasTopic(topicString))
+			{
+				System.out.println("Topic '" + topicString + "' already exists. Choose a unique topic string.");
+				return;
+			}
+			
+			if (TopicMatcher.isPattern(topicString))
+			{
+				System.out.println("Wildcard topic '" + topicString + "' cannot be partitioned.");
+				return;
+			}
+			
+			TopicQueue[] partitions = new TopicQueue[partitionCount];
+			for (int i=0; i<partitionCount; i++)
+			{
+				partitions[i] = startTopicQueue(PartitionedTopic.getPartitionName(topicString, i), TopicStorageMode.RING, defaultIdleStrategy);
+			}
+			partitionedTopics.put(topicString, new PartitionedTopic(topicString, partitions));
+			clearRouteCache();
+			System.out.println("Topic with string '" + topicString + "' created with " + partitionCount + " partitions.");
+			if (!topicQueues.containsKey(defaultTopic))
+			{
+				createTopic(defaultTopic);
+			}
+		}
+	}
+	
+	/**
+	 * Creates a TopicQueue with the current retention and persistence settings and 
+	 * starts its runnable to update queue head
+	 */
+	private TopicQueue startTopicQueue(String name, TopicStorageMode storageMode, Supplier<IdleStrategy> idleStrategy)
+	{
+		TopicQueue topicQueue = new TopicQueue(getMaxSize(), name, storageMode);
+		topicQueue.setRetentionPolicy(defaultRetentionPolicy);
+		topicQueue.setIdleStrategy(idleStrategy);
+		topicQueue.registerMetrics(metrics);
+		if (persistenceConfig != null)
+		{
+			try {
+				topicQueue.attachCommitLog(new CommitLog(getTopicDirectory(name), persistenceConfig));
+			} catch (IOException e) {
+				System.out.println("Topic '" + name + "' could not be persisted. It will be kept in memory only.");
+				e.printStackTrace();
+			}
+		}
+		executorService.submit(topicQueue);
+		return topicQueue;
+	}
+	
+	public PartitionedTopic getPartitionedTopic(String topic)
+	{
+		if (topic == null)
+			return null;
+		
+		return partitionedTopics.get(topic);
+	}
+	
+	/**
+	 * Adds the consumer to a group of a partitioned topic. The group is created with its first member.
+	 */
+	public void subscribeConsumerToGroup(int consumerID, String topic, String groupName)
+	{
+		Consumer consumer = getConsumer(consumerID);
+		if (consumer==null)
+		{
+			return;
+		}
+		
+		PartitionedTopic partitionedTopic = getPartitionedTopic(topic);
+		if (partitionedTopic==null)
+		{
+			System.out.println("Partitioned topic " + topic + " doesn't exist.");
+			return;
+		}
+		
+		if (isStringEmpty(groupName))
+		{
+			System.out.println("Empty string not allowed for groups. Enter a valid group name.");
+			return;
+		}
+		
+		ConsumerGroup group = partitionedTopic.getOrCreateGroup(groupName);
+		if (consumer.isMemberOf(group))
+		{
+			System.out.println(consumer + " already member of " + group + " of topic " + topic + ".");
+			return;
+		}
+		
+		group.start(subscriptionExecutor);
+		consumer.joinGroup(group);
+		System.out.println(consumer + " joined " + group + " of topic '" + topic + "'.");
+	}
+	
+	public WorkerExecutionMode getWorkerExecutionMode() 
+	{
+		return workerExecutionMode;
+	}
+	
+	/**
+	 * Sets the kind of threads the subscription workers run on. 
+	 * Has to be set before any consumer is created.
+	 */
+	public void setWorkerExecutionMode(WorkerExecutionMode workerExecutionMode)
+	{
+		synchronized (consumerList) 
+		{
+			if (!consumerList.isEmpty())
+			{
+				System.out.println("Worker execution mode can only be changed before consumers are created.");
+				return;
+			}
+			
+			subscriptionExecutor.shutdown();
+			subscriptionExecutor = createSubscriptionExecutor(workerExecutionMode);
+			this.workerExecutionMode = workerExecutionMode;
+		}
+	}
+	
+	private ExecutorService createSubscriptionExecutor(WorkerExecutionMode workerExecutionMode)
+	{
+		if (workerExecutionMode == WorkerExecutionMode.VIRTUAL)
+		{
+			// Looked up reflectively so that the queue still builds and runs on Java versions without virtual threads
+			try {
+				return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (ReflectiveOperationException e) {
+				System.out.println("Virtual threads are not supported by this Java version. Platform threads will be used.");
+			}
+		}
+		return Executors.newCachedThreadPool();
+	}
+	
+	/**
+	 * Metrics of the queue. Also available over JMX under MetricsRegistry.JMX_NAME.
+	 */
+	public MetricsRegistry getMetrics() 
+	{
+		return metrics;
+	}
+	
+	/**
+	 * Asynchronous log of the consumed messages. Disable it to consume without console output.
+	 */
+	public DiagnosticLog getDiagnosticLog() 
+	{
+		return diagnosticLog;
+	}
+	
 	public Producer getProducer()
 	{
 		return Producer.getInstance();
@@ -274,26 +589,387 @@ public class QueueExt
 	
 	public boolean hasTopic(String topic)
 	{
-		return topicQueues.containsKey(topic);
+		return topic != null && (topicQueues.containsKey(topic) || partitionedTopics.containsKey(topic));
 	}
 	
 	/**
 	 * Producer will call this message to put the incoming messages into the main queue.
+	 * When the queue is full, the overflow policy decides what happens to the message.
 	 * @param message
 	 * @return
 	 */
-	public synchronized void pushMessageToMainQueue(Message message)
+	public PushResult pushMessageToMainQueue(Message message)
+	{
+		if (directRouting)
+			return pushMessageToTopic(message);
+		
+		DiskSpillBuffer buffer = spillBuffer;
+		// Once messages are spilled, new ones queue up behind them on disk
+		if ((buffer == null || buffer.isEmpty()) && mainQueue.offer(message))
+		{
+			router.signal();
+			return PushResult.ACCEPTED;
+		}
+		
+		PushResult result = handleOverflow(message);
+		if (result.isAccepted())
+			router.signal();
+		if (result != PushResult.ACCEPTED)
+			metrics.counter("mainQueue.overflow." + result.name().toLowerCase()).increment();
+		return result;
+	}
+	
+	private PushResult handleOverflow(Message message)
+	{
+		OverflowPolicy policy = overflowPolicy;
+		DiskSpillBuffer buffer = spillBuffer;
+		long start = System.nanoTime();
+		try {
+			switch (policy)
+			{
+			case BLOCK:
+				mainQueue.put(message);
+				return PushResult.ACCEPTED;
+			case BLOCK_WITH_TIMEOUT:
+				if (mainQueue.offer(message, overflowTimeoutMillis, TimeUnit.MILLISECONDS))
+					return PushResult.ACCEPTED;
+				return PushResult.TIMED_OUT;
+			case DROP_OLDEST:
+				while (!mainQueue.offer(message))
+				{
+					mainQueue.poll();
+				}
+				return PushResult.ACCEPTED_DROPPED_OLDEST;
+			case DROP_NEWEST:
+				return PushResult.DROPPED;
+			case SPILL_TO_DISK:
+				if (buffer != null)
+				{
+					buffer.append(message);
+					return PushResult.SPILLED;
+				}
+				return PushResult.REJECTED;
+			default:
+				return PushResult.REJECTED;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return PushResult.REJECTED;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return PushResult.REJECTED;
+		} finally {
+			producerBlockNanos.add(System.nanoTime() - start);
+		}
+	}
+	
+	/**
+	 * Holds the message until the delivery time, then pushes it to the main queue like a new message.
+	 * The overflow policy applies when it is pushed, not when it is scheduled.
+	 * @return SCHEDULED, or the result of pushing it right away if the delivery time has passed
+	 */
+	public PushResult scheduleMessage(Message message, long deliveryTimeMillis)
+	{
+		if (deliveryTimeMillis <= System.currentTimeMillis())
+			return pushMessageToMainQueue(message);
+		
+		scheduler.schedule(message, deliveryTimeMillis);
+		return PushResult.SCHEDULED;
+	}
+	
+	/**
+	 * Puts the message straight into its TopicQueues, on the producer's thread. 
+	 * A full topic is handled by the overflow policy, without holding back other topics.
+	 * @return ACCEPTED if every topic took the message, otherwise the result of the first that didn't
+	 */
+	private PushResult pushMessageToTopic(Message message)
+	{
+		TopicQueue[] targets = resolveTopicQueues(message);
+		if (targets.length == 0)
+			return PushResult.REJECTED;
+		
+		PushResult result = PushResult.ACCEPTED;
+		PushResult topicResult;
+		for (TopicQueue topicQueue : targets)
+		{
+			topicResult = pushMessageToTopic(message, topicQueue);
+			if (result == PushResult.ACCEPTED)
+				result = topicResult;
+		}
+		return result;
+	}
+	
+	private PushResult pushMessageToTopic(Message message, TopicQueue topicQueue)
 	{
+		if (topicQueue.offer(message))
+			return PushResult.ACCEPTED;
+		
+		PushResult result;
+		long start = System.nanoTime();
 		try {
-			mainQueue.put(message);
+			switch (overflowPolicy)
+			{
+			case BLOCK:
+				topicQueue.put(message);
+				result = PushResult.ACCEPTED;
+				break;
+			case BLOCK_WITH_TIMEOUT:
+				result = topicQueue.offer(message, overflowTimeoutMillis, TimeUnit.MILLISECONDS) ? PushResult.ACCEPTED : PushResult.TIMED_OUT;
+				break;
+			case DROP_NEWEST:
+				result = PushResult.DROPPED;
+				break;
+			default:
+				result = PushResult.REJECTED;
+			}
 		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			result = PushResult.REJECTED;
+		} finally {
+			producerBlockNanos.add(System.nanoTime() - start);
+		}
+		
+		if (result != PushResult.ACCEPTED)
+			metrics.counter("topic." + topicQueue.getTopic() + ".overflow." + result.name().toLowerCase()).increment();
+		return result;
+	}
+	
+	public boolean isDirectRouting() 
+	{
+		return directRouting;
+	}
+	
+	/**
+	 * Lets producers skip the main queue and the router, and put messages straight into their topic.
+	 * Only the BLOCK, BLOCK_WITH_TIMEOUT, REJECT and DROP_NEWEST policies apply to a topic.
+	 * Meant to be set before producing: messages still in the main queue are not waited for.
+	 * Batches are offered message by message, and stop at the first full topic.
+	 */
+	public void setDirectRouting(boolean directRouting) 
+	{
+		if (directRouting && !isTopicOverflowPolicy(overflowPolicy))
+		{
+			System.out.println("Overflow policy " + overflowPolicy + " only applies to the main queue. Direct routing not enabled.");
+			return;
+		}
+		this.directRouting = directRouting;
+	}
+	
+	private boolean isTopicOverflowPolicy(OverflowPolicy policy)
+	{
+		return policy != OverflowPolicy.DROP_OLDEST && policy != OverflowPolicy.SPILL_TO_DISK;
+	}
+	
+	public OverflowPolicy getOverflowPolicy() 
+	{
+		return overflowPolicy;
+	}
+	
+	/**
+	 * SPILL_TO_DISK needs a spill file to be set first.
+	 */
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) 
+	{
+		if (overflowPolicy == OverflowPolicy.SPILL_TO_DISK && spillBuffer == null)
+		{
+			System.out.println("Set a spill file before spilling to disk.");
+			return;
+		}
+		if (directRouting && !isTopicOverflowPolicy(overflowPolicy))
+		{
+			System.out.println("Overflow policy " + overflowPolicy + " only applies to the main queue. Disable direct routing first.");
+			return;
+		}
+		this.overflowPolicy = overflowPolicy;
+	}
+	
+	/**
+	 * Longest wait for room under BLOCK_WITH_TIMEOUT
+	 */
+	public void setOverflowTimeoutMillis(long overflowTimeoutMillis) 
+	{
+		this.overflowTimeoutMillis = overflowTimeoutMillis;
+	}
+	
+	/**
+	 * Opens the file used by SPILL_TO_DISK. Messages left in it by a previous run are queued again.
+	 */
+	public synchronized void setSpillFile(File file)
+	{
+		if (spillBuffer != null)
+		{
+			System.out.println("Spill file is already set.");
+			return;
+		}
+		try {
+			spillBuffer = new DiskSpillBuffer(file);
+		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		// Also wakes the router if it is waiting on an empty queue
+		drainSpillBuffer();
+	}
+	
+	public boolean hasSpillBuffer()
+	{
+		return spillBuffer != null;
+	}
+	
+	/**
+	 * Called by the router to move spilled messages back into the main queue as it frees up.
+	 */
+	public void drainSpillBuffer()
+	{
+		DiskSpillBuffer buffer = spillBuffer;
+		if (buffer == null || buffer.isEmpty())
+			return;
+		
+		try {
+			buffer.drainTo(mainQueue);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Producer will call this method to put a batch of messages into the main queue.
+	 * Room for the whole batch is claimed at once. Null messages are never accepted.
+	 * With direct routing, the messages go to their topics one by one instead.
+	 * While messages are spilled to disk, the whole batch is spilled behind them, to keep their order.
+	 * @param messages
+	 * @param allOrNothing - Accept the batch only if all of it fits
+	 * @return Number of messages accepted, in order from the start of the batch
+	 */
+	public int pushMessagesToMainQueue(Collection<Message> messages, boolean allOrNothing)
+	{
+		List<Message> nonNullMessages = null;
+		for (Message message : messages)
+		{
+			if (message != null)
+				continue;
+			
+			if (allOrNothing)
+			{
+				System.out.println("Error: Null cannot be passed into the queue. Batch rejected.");
+				return 0;
+			}
+			nonNullMessages = new ArrayList<Message>(messages.size());
+			break;
+		}
+		
+		if (directRouting)
+			return pushMessagesToTopics(messages, allOrNothing);
+		
+		if (nonNullMessages != null)
+		{
+			for (Message message : messages)
+			{
+				if (message != null)
+					nonNullMessages.add(message);
+			}
+			messages = nonNullMessages;
+		}
+		
+		DiskSpillBuffer buffer = spillBuffer;
+		// Like single messages, a batch queues up on disk behind messages already spilled
+		if (buffer != null && !buffer.isEmpty())
+			return spillMessages(buffer, new ArrayList<Message>(messages));
+		
+		int accepted = mainQueue.offerAll(messages, allOrNothing);
+		if (accepted > 0)
+			router.signal();
+		return accepted;
+	}
+	
+	/**
+	 * Spills the whole batch, or none of it if the spill file can't be written
+	 * @return Number of messages accepted
+	 */
+	private int spillMessages(DiskSpillBuffer buffer, List<Message> messages)
+	{
+		try {
+			buffer.appendAll(messages);
+		} catch (IOException e) {
+			e.printStackTrace();
+			metrics.counter("mainQueue.overflow.rejected").add(messages.size());
+			return 0;
+		}
+		metrics.counter("mainQueue.overflow.spilled").add(messages.size());
+		router.signal();
+		return messages.size();
+	}
+	
+	/**
+	 * Offers the messages to their topics in order, until a topic is full. Null messages are skipped.
+	 * A message counts as accepted once all its topics took it. The message a batch stops at 
+	 * may already be in some of its topics.
+	 * An all-or-nothing batch is only started if every topic had room for its messages when checked,
+	 * other producers may still take that room first.
+	 */
+	private int pushMessagesToTopics(Collection<Message> messages, boolean allOrNothing)
+	{
+		// Resolved once, a partition picked round robin must be the one checked for room
+		TopicQueue[][] targets = new TopicQueue[messages.size()][];
+		int i = 0;
+		for (Message message : messages)
+		{
+			if (message != null)
+				targets[i] = resolveTopicQueues(message);
+			i++;
+		}
+		
+		if (allOrNothing)
+		{
+			Map<TopicQueue, Integer> needed = new HashMap<TopicQueue, Integer>();
+			Integer count;
+			for (TopicQueue[] messageTargets : targets)
+			{
+				if (messageTargets.length == 0)
+					return 0;
+				for (TopicQueue topicQueue : messageTargets)
+				{
+					count = needed.get(topicQueue);
+					needed.put(topicQueue, count == null ? 1 : count + 1);
+				}
+			}
+			for (Map.Entry<TopicQueue, Integer> entry : needed.entrySet())
+			{
+				if (entry.getKey().remainingCapacity() < entry.getValue())
+					return 0;
+			}
+		}
+		
+		int accepted = 0;
+		i = 0;
+		for (Message message : messages)
+		{
+			if (message != null)
+			{
+				if (!offerToAll(message, targets[i]))
+					break;
+				accepted++;
+			}
+			i++;
+		}
+		return accepted;
+	}
+	
+	private boolean offerToAll(Message message, TopicQueue[] messageTargets)
+	{
+		if (messageTargets.length == 0)
+			return false;
+		
+		for (TopicQueue topicQueue : messageTargets)
+		{
+			if (!topicQueue.offer(message))
+				return false;
+		}
+		return true;
 	}
 	
 	public void setTopicDependency(String topic, String dependencyOrder)
 	{
-		if (topic.isEmpty() || !topicQueues.containsKey(topic))
+		if (isStringEmpty(topic) || !topicQueues.containsKey(topic))
 		{
 			System.out.println("Enter valid and existing topic.");
 			System.out.println("Available Topics are: " + topicQueues.keySet().toString());
@@ -301,6 +977,12 @@ public class QueueExt
 		}
 		
 		TopicQueue topicQueue = topicQueues.get(topic);
+		if (topicQueue.isRingMode())
+		{
+			System.out.println("Topic " + topic + " uses ring buffer storage. Dependencies are not supported on it.");
+			return;
+		}
+		
 		if (topicQueue.hasDependency())
 		{
 			System.out.println("Topic " + topic + " already has an active dependency: " + topicQueue.getDependency().getDependencyOrder());
@@ -316,22 +998,234 @@ public class QueueExt
 			System.out.println("Topic " + topicQueue.getTopic() + " is set for dependency for order of consumers: " + topicQueue.getDependency().getDependencyOrder());
 	}
 	
-	public boolean putMessageToTopic(Message message)
+	/**
+	 * Persists every topic created from now on to a commit log in the configured directory.
+	 * Creating a topic that was persisted before restores its messages.
+	 */
+	public void enablePersistence(PersistenceConfig persistenceConfig)
 	{
-		if (message!=null)
+		this.persistenceConfig = persistenceConfig;
+	}
+	
+	public boolean isPersistenceEnabled()
+	{
+		return persistenceConfig != null;
+	}
+	
+	private File getTopicDirectory(String topic)
+	{
+		return new File(persistenceConfig.getDirectory(), topic.replaceAll("[^A-Za-z0-9#._-]", "_"));
+	}
+	
+	public RetentionPolicy getDefaultRetentionPolicy() 
+	{
+		return defaultRetentionPolicy;
+	}
+	
+	public void setDefaultRetentionPolicy(RetentionPolicy defaultRetentionPolicy) 
+	{
+		this.defaultRetentionPolicy = defaultRetentionPolicy;
+	}
+	
+	public Supplier<IdleStrategy> getDefaultIdleStrategy() 
+	{
+		return defaultIdleStrategy;
+	}
+	
+	/**
+	 * Sets how the loops of topics created from now on wait when they have nothing to do,
+	 * including the partitions of partitioned topics. By default they sleep for the sleep period.
+	 */
+	public void setDefaultIdleStrategy(Supplier<IdleStrategy> defaultIdleStrategy) 
+	{
+		this.defaultIdleStrategy = defaultIdleStrategy;
+	}
+	
+	/**
+	 * Sets how the router waits between retries of messages held back for full topics or spilled to disk.
+	 * By default it waits for the next message, or the sleep period at most.
+	 */
+	public void setRouterIdleStrategy(IdleStrategy routerIdleStrategy) 
+	{
+		router.setIdleStrategy(routerIdleStrategy);
+	}
+	
+	/**
+	 * Gives the topic priority lanes, by message priority. Subscribers read the highest lane with messages first,
+	 * and a lower lane with messages goes first once it was passed over 'starvationLimit' times.
+	 * Not supported on ring buffer or persisted topics. Meant to be set before producing to the topic.
+	 */
+	public void setTopicPriorityLanes(String topic, int laneCount, int starvationLimit)
+	{
+		TopicQueue topicQueue = getTopicQueue(topic);
+		if (topicQueue == null)
+		{
+			System.out.println("Topic " + topic + " doesn't exist.");
+			return;
+		}
+		if (topicQueue.isRingMode())
+		{
+			System.out.println("Topic " + topic + " uses ring buffer storage. Priority lanes are not supported on it.");
+			return;
+		}
+		if (topicQueue.isPersistent())
+		{
+			// The commit log checkpoint assumes messages leave the topic in the order they were logged
+			System.out.println("Topic " + topic + " is persisted. Priority lanes are not supported on it.");
+			return;
+		}
+		if (topicQueue.hasPriorityLanes())
+		{
+			System.out.println("Topic " + topic + " already has priority lanes.");
+			return;
+		}
+		if (laneCount<2 || starvationLimit<1)
+		{
+			System.out.println("Enter at least 2 lanes and a starvation limit greater than 0.");
+			return;
+		}
+		
+		topicQueue.enablePriorityLanes(laneCount, starvationLimit);
+		System.out.println("Topic " + topic + " has " + laneCount + " priority lanes.");
+	}
+	
+	/**
+	 * Sets how much history of the topic is retained for recovering consumers
+	 */
+	public void setTopicRetention(String topic, RetentionPolicy retentionPolicy)
+	{
+		TopicQueue topicQueue = getTopicQueue(topic);
+		if (topicQueue == null)
 		{
-			String topic = message.getTopicString();
-			if (!this.hasTopic(topic)) // If the topic doesn't exists, the queue will put it in a "Default Topic" queue
+			System.out.println("Topic " + topic + " doesn't exist.");
+			return;
+		}
+		
+		topicQueue.setRetentionPolicy(retentionPolicy);
+		System.out.println("Topic " + topic + " retains history with " + retentionPolicy + ".");
+	}
+	
+	/**
+	 * Sets the time to live of the topic's messages that don't set one of their own. 0 turns it off.
+	 * On a partitioned topic, it applies to every partition.
+	 */
+	public void setTopicTimeToLive(String topic, long timeToLiveMillis)
+	{
+		if (timeToLiveMillis < 0)
+		{
+			System.out.println("Enter a time to live of 0 or more milliseconds.");
+			return;
+		}
+		
+		PartitionedTopic partitionedTopic = getPartitionedTopic(topic);
+		if (partitionedTopic != null)
+		{
+			for (int i=0; i<partitionedTopic.getPartitionCount(); i++)
 			{
-				topic=this.defaultTopic;
+				partitionedTopic.getPartition(i).setDefaultTimeToLive(timeToLiveMillis);
 			}
+		}
+		else
+		{
+			TopicQueue topicQueue = getTopicQueue(topic);
+			if (topicQueue == null)
+			{
+				System.out.println("Topic " + topic + " doesn't exist.");
+				return;
+			}
+			topicQueue.setDefaultTimeToLive(timeToLiveMillis);
+		}
+		if (timeToLiveMillis == 0)
+			System.out.println("Messages of topic " + topic + " no longer expire by default.");
+		else
+			System.out.println("Messages of topic " + topic + " expire after " + timeToLiveMillis + " ms by default.");
+	}
+	
+	/**
+	 * Finds the queues of the message's topic: the topic itself and every wildcard topic matching it.
+	 * If there are none, the message goes to the "Default Topic" queue.
+	 * Lookups are cached by topic string, so the cost doesn't grow with the number of wildcard topics.
+	 * @return Empty if no topic exists yet
+	 */
+	public TopicQueue[] resolveTopicQueues(Message message)
+	{
+		String topic = message.getTopicString();
+		TopicQueue[] route = topic == null ? null : routeCache.get(topic);
+		if (route == null)
+			route = cacheRoute(topic);
+		
+		PartitionedTopic partitionedTopic = getPartitionedTopic(topic);
+		if (partitionedTopic != null)
+		{
+			// The partition is picked for every message
+			TopicQueue[] withPartition = new TopicQueue[route.length + 1];
+			withPartition[0] = partitionedTopic.selectPartition(message);
+			System.arraycopy(route, 0, withPartition, 1, route.length);
+			return withPartition;
+		}
+		
+		if (route.length == 0)
+		{
+			System.out.println("No topics created yet. Message " + message.getMessageID() + " dropped.");
+		}
+		return route;
+	}
+	
+	/**
+	 * Looks up the topic itself and every wildcard topic matching it. 
+	 * If there are none, and it is not a partitioned topic, the message goes to the default topic.
+	 */
+	private TopicQueue[] cacheRoute(String topic)
+	{
+		long version = routeCacheVersion;
+		List<TopicQueue> matches = new ArrayList<TopicQueue>(2);
+		TopicQueue topicQueue = getTopicQueue(topic);
+		if (topicQueue != null)
+			matches.add(topicQueue);
+		if (topic != null)
+			topicMatcher.match(topic, matches);
+		
+		if (matches.isEmpty() && getPartitionedTopic(topic) == null)
+		{
+			topicQueue = topicQueues.get(this.defaultTopic);
+			if (topicQueue != null)
+				matches.add(topicQueue);
+		}
+		
+		TopicQueue[] route = matches.isEmpty() ? NO_TOPIC_QUEUES : matches.toArray(new TopicQueue[matches.size()]);
+		if (topic == null)
+			return route;
+		
+		if (routeCache.size() >= MAX_CACHED_ROUTES)
+			routeCache.clear();
+		routeCache.put(topic, route);
+		// A topic created meanwhile may have cleared the cache before this route was put in
+		if (routeCacheVersion != version)
+			routeCache.remove(topic);
+		return route;
+	}
+	
+	private void clearRouteCache()
+	{
+		routeCacheVersion++;
+		routeCache.clear();
+	}
+	
+	public boolean putMessageToTopic(Message message)
+	{
+		if (message!=null)
+		{
+			TopicQueue[] targets = resolveTopicQueues(message);
+			if (targets.length == 0)
+				return false;
 			
+			// No registry lock is held here, so a full topic only blocks its own messages
 			try {
-				synchronized (topicQueues) 
+				for (TopicQueue topicQueue : targets)
 				{
-					topicQueues.get(topic).put(message);
-					return true;
+					topicQueue.put(message);
 				}
+				return true;
 			} catch (InterruptedException e) {
 				e.printStackTrace();
 			}
@@ -359,13 +1253,14 @@ public class QueueExt
 		if (consumer!=null)
 			consumer.setActive(false);
 	}
-
+	
 	/**
 	 * Terminates all services and threads.
 	 */
 	public void shutdown()
 	{
 		this.running=false;
+		routerFuture.cancel(true);
 		stopWaitingThreads();
 		executorService.shutdown();
 		try {
@@ -374,28 +1269,63 @@ public class QueueExt
 			e.printStackTrace();
 		}
 		shutDownConsumers();
+		subscriptionExecutor.shutdown();
+		try {
+			subscriptionExecutor.awaitTermination(1, TimeUnit.DAYS);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		closeCommitLogs();
+		diagnosticLog.close();
+		if (spillBuffer != null)
+			spillBuffer.close();
+		metrics.unregisterMBean();
+	}
+	
+	private void closeCommitLogs()
+	{
+		for (TopicQueue topicQueue : topicQueues.values())
+		{
+			topicQueue.closeCommitLog();
+		}
+		for (PartitionedTopic partitionedTopic : partitionedTopics.values())
+		{
+			for (int i=0; i<partitionedTopic.getPartitionCount(); i++)
+			{
+				partitionedTopic.getPartition(i).closeCommitLog();
+			}
+		}
 	}
 	
 	/**
-	 * Stops any waiting threads owing to dependency
+	 * Stops any waiting threads owing to dependency, consumer groups, idle strategies or scheduled messages
 	 */
 	private void stopWaitingThreads() 
 	{
+		scheduler.wake();
 		TopicQueue topicQueue;
 		for (Map.Entry<String, TopicQueue> entry : topicQueues.entrySet())
 		{
 			topicQueue = entry.getValue();
 			if (topicQueue.hasDependency())
 			{
-				synchronized (topicQueue) 
-				{
-					topicQueue.notifyAll();
-				}
+				topicQueue.signalDependencyTurn();
+			}
+			topicQueue.signalIdleStrategies();
+		}
+		for (PartitionedTopic partitionedTopic : partitionedTopics.values())
+		{
+			for (ConsumerGroup group : partitionedTopic.getGroups())
+			{
+				group.shutdown();
+			}
+			for (int i=0; i<partitionedTopic.getPartitionCount(); i++)
+			{
+				partitionedTopic.getPartition(i).signalIdleStrategies();
 			}
-				
 		}
 	}
-
+	
 	private void shutDownConsumers() 
 	{
 		for (Consumer consumer : consumerList)
@@ -403,7 +1333,7 @@ public class QueueExt
 			consumer.shutdown();
 		}
 	}
-
+	
 	public boolean isStringEmpty(String str)
 	{
 		if (str == null || str.trim().equals(""))
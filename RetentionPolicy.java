@@ -0,0 +1,55 @@
+package src;
+
+/**
+ * Limits how much of a topic's history is retained.
+ * A limit less than or equal to zero is not applied.
+ * History is released in whole segments, so a topic can hold up to one 
+ * segment more than the limits.
+ * @author apebbati
+ *
+ */
+public class RetentionPolicy 
+{
+	public static final RetentionPolicy UNLIMITED = new RetentionPolicy(0, 0, 0);
+	
+	private final long maxMessages;
+	private final long maxBytes;
+	private final long maxAgeMillis;
+	
+	/**
+	 * @param maxMessages - Number of messages to retain
+	 * @param maxBytes - Estimated size of the messages to retain
+	 * @param maxAgeMillis - Age after which a message is released
+	 */
+	public RetentionPolicy(long maxMessages, long maxBytes, long maxAgeMillis)
+	{
+		this.maxMessages=maxMessages;
+		this.maxBytes=maxBytes;
+		this.maxAgeMillis=maxAgeMillis;
+	}
+	
+	public long getMaxMessages() 
+	{
+		return maxMessages;
+	}
+	
+	public long getMaxBytes() 
+	{
+		return maxBytes;
+	}
+	
+	public long getMaxAgeMillis() 
+	{
+		return maxAgeMillis;
+	}
+	
+	public boolean isUnlimited()
+	{
+		return maxMessages<=0 && maxBytes<=0 && maxAgeMillis<=0;
+	}
+	
+	@Override
+	public String toString() {
+		return "maxMessages=" + maxMessages + ", maxBytes=" + maxBytes + ", maxAgeMillis=" + maxAgeMillis;
+	}
+}
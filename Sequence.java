@@ -0,0 +1,32 @@
+package src;
+
+/**
+ * Read cursor of a subscriber on a ring buffer TopicQueue.
+ * Holds the next sequence the subscriber is going to read.
+ * @author apebbati
+ *
+ */
+public class Sequence 
+{
+	private volatile long value;
+	
+	public Sequence(long initialValue)
+	{
+		this.value=initialValue;
+	}
+	
+	public long get() 
+	{
+		return value;
+	}
+	
+	public void set(long value) 
+	{
+		this.value = value;
+	}
+	
+	@Override
+	public String toString() {
+		return String.valueOf(value);
+	}
+}
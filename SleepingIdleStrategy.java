@@ -0,0 +1,32 @@
+package src;
+
+/**
+ * Sleeps for a fixed period after every pass, busy or not. The classic behaviour of the queue's threads.
+ * @author apebbati
+ *
+ */
+public class SleepingIdleStrategy implements IdleStrategy 
+{
+	private final long sleepMillis;
+	
+	public SleepingIdleStrategy(long sleepMillis)
+	{
+		this.sleepMillis=sleepMillis;
+	}
+	
+	@Override
+	public void idle(int workCount) 
+	{
+		try {
+			Thread.sleep(sleepMillis);
+		} catch (InterruptedException e) {
+			// Left for the loop to notice
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	@Override
+	public void signal() 
+	{
+	}
+}
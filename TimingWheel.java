@@ -0,0 +1,206 @@
+package src;
+
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel holding messages until their deadline tick.
+ * Every level has 256 slots, and a slot of level n spans 256^n ticks. A timer is added
+ * to the lowest level whose range covers its deadline, as the head of a linked list,
+ * so adding is O(1). When the ticks of a higher level slot come up, its timers cascade
+ * down into the lower levels, and the timers of the current level 0 slot are due.
+ * Deadlines past the range of the top level wait in its farthest slot and are placed again when it cascades.
+ * Not thread-safe, only used by the MessageScheduler thread.
+ * @author apebbati
+ *
+ */
+public class TimingWheel
+{
+	private static final int SLOT_BITS = 8;
+	private static final int SLOTS = 1 << SLOT_BITS;
+	private static final int SLOT_MASK = SLOTS - 1;
+	
+	private final int levels;
+	private final Timer[][] slots;
+	/**
+	 * Last tick advanced to. Its level 0 slot has been emptied.
+	 */
+	private long currentTick;
+	private int size=0;
+	
+	public TimingWheel(int levels, long startTick)
+	{
+		// Far deadlines wait in the top level, which has to cascade into a lower one
+		if (levels < 2 || levels * SLOT_BITS >= 63)
+			throw new IllegalArgumentException("Number of levels must be between 2 and 7.");
+		
+		this.levels = levels;
+		this.slots = new Timer[levels][SLOTS];
+		this.currentTick = startTick;
+	}
+	
+	/**
+	 * @return false if the timer is already due, it is not added then
+	 */
+	public boolean add(Timer timer)
+	{
+		if (timer.deadlineTick <= currentTick)
+			return false;
+		
+		place(timer);
+		size++;
+		return true;
+	}
+	
+	private void place(Timer timer)
+	{
+		long delta = timer.deadlineTick - currentTick;
+		long tick = timer.deadlineTick;
+		int level = 0;
+		while (level < levels - 1 && delta >= 1L << (SLOT_BITS * (level + 1)))
+		{
+			level++;
+		}
+		// Beyond the top level, waits in its farthest slot
+		if (delta >= 1L << (SLOT_BITS * levels))
+			tick = currentTick + (1L << (SLOT_BITS * levels)) - 1;
+		
+		int slot = (int) (tick >>> (SLOT_BITS * level)) & SLOT_MASK;
+		timer.next = slots[level][slot];
+		slots[level][slot] = timer;
+	}
+	
+	/**
+	 * Moves the wheel forward up to the given tick, adding the messages that came due to the list.
+	 * Goes straight from one occupied slot to the next, so empty ticks cost nothing.
+	 */
+	public void advance(long tick, List<Message> due)
+	{
+		int level;
+		long next;
+		Timer timer;
+		Timer nextTimer;
+		while (currentTick < tick)
+		{
+			next = nextOccupiedTick(tick);
+			if (next > tick)
+			{
+				// Nothing due or cascading until then
+				currentTick = tick;
+				return;
+			}
+			currentTick = next;
+			// Highest level whose slot boundary is this tick
+			level = 0;
+			while (level < levels - 1 && (currentTick & ((1L << (SLOT_BITS * (level + 1))) - 1)) == 0)
+			{
+				level++;
+			}
+			for (; level > 0; level--)
+			{
+				cascade(level);
+			}
+			
+			int slot = (int) currentTick & SLOT_MASK;
+			timer = slots[0][slot];
+			slots[0][slot] = null;
+			for (; timer != null; timer = nextTimer)
+			{
+				nextTimer = timer.next;
+				timer.next = null;
+				due.add(timer.message);
+				size--;
+			}
+		}
+	}
+	
+	/**
+	 * First tick after the current one, and up to the limit, at which a level 0 slot comes due
+	 * or a higher level slot with timers cascades. A slot of level n can only come up on
+	 * multiples of 256^n, so each level is checked at most once around.
+	 * @return Long.MAX_VALUE if there is none up to the limit
+	 */
+	private long nextOccupiedTick(long limit)
+	{
+		long next = Long.MAX_VALUE;
+		if (size == 0)
+			return next;
+		
+		int shift;
+		long base;
+		long tick;
+		for (int level=0; level<levels; level++)
+		{
+			shift = SLOT_BITS * level;
+			base = currentTick >>> shift;
+			for (int ticks=1; ticks<=SLOTS; ticks++)
+			{
+				tick = (base + ticks) << shift;
+				if (tick >= next || tick > limit)
+					break;
+				if (slots[level][(int) (base + ticks) & SLOT_MASK] != null)
+				{
+					next = tick;
+					break;
+				}
+			}
+		}
+		return next;
+	}
+	
+	/**
+	 * Places the timers of the level's current slot again, in the levels below
+	 */
+	private void cascade(int level)
+	{
+		int slot = (int) (currentTick >>> (SLOT_BITS * level)) & SLOT_MASK;
+		Timer timer = slots[level][slot];
+		slots[level][slot] = null;
+		Timer next;
+		for (; timer != null; timer = next)
+		{
+			next = timer.next;
+			place(timer);
+		}
+	}
+	
+	/**
+	 * Ticks from the current one until advancing finds timers due or cascading.
+	 * @return Long.MAX_VALUE if the wheel is empty
+	 */
+	public long ticksUntilNextExpiry()
+	{
+		long next = nextOccupiedTick(Long.MAX_VALUE);
+		return next == Long.MAX_VALUE ? next : next - currentTick;
+	}
+	
+	public long getCurrentTick()
+	{
+		return currentTick;
+	}
+	
+	public int size()
+	{
+		return size;
+	}
+	
+	/**
+	 * A message waiting in the wheel
+	 */
+	public static class Timer
+	{
+		private final Message message;
+		private final long deadlineTick;
+		private Timer next;
+		
+		public Timer(Message message, long deadlineTick)
+		{
+			this.message = message;
+			this.deadlineTick = deadlineTick;
+		}
+		
+		public Message getMessage()
+		{
+			return message;
+		}
+	}
+}
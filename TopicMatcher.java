@@ -0,0 +1,114 @@
+package src;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Trie of the wildcard topics, keyed by the segments of their topic strings.
+ * Topic strings are hierarchical, with segments separated by '.'. In a wildcard topic,
+ * '*' matches exactly one segment and '#' matches zero or more segments.
+ * Matching walks the trie once for the message's topic, so it doesn't look at
+ * wildcard topics that can't match. Patterns are added while messages are matched.
+ * @author apebbati
+ *
+ */
+public class TopicMatcher
+{
+	public static final String SEPARATOR = ".";
+	public static final String ANY_SEGMENT = "*";
+	public static final String ANY_SEGMENTS = "#";
+	
+	private final Node root = new Node();
+	
+	/**
+	 * Checks if the topic string uses a wildcard, valid or not
+	 */
+	public static boolean isPattern(String topic)
+	{
+		return topic != null && (topic.contains(ANY_SEGMENT) || topic.contains(ANY_SEGMENTS));
+	}
+	
+	/**
+	 * A wildcard may only be used as a whole segment, and no segment may be empty
+	 */
+	public static boolean isValidPattern(String pattern)
+	{
+		for (String segment : split(pattern))
+		{
+			if (segment.isEmpty())
+				return false;
+			if ((segment.contains(ANY_SEGMENT) || segment.contains(ANY_SEGMENTS))
+					&& !segment.equals(ANY_SEGMENT) && !segment.equals(ANY_SEGMENTS))
+				return false;
+		}
+		return true;
+	}
+	
+	private static String[] split(String topic)
+	{
+		// Keeps trailing empty segments, so that they are found invalid
+		return topic.split("\\" + SEPARATOR, -1);
+	}
+	
+	public synchronized void add(String pattern, TopicQueue topicQueue)
+	{
+		Node node = root;
+		Node child;
+		for (String segment : split(pattern))
+		{
+			child = node.children.get(segment);
+			if (child == null)
+			{
+				child = new Node();
+				node.children.put(segment, child);
+			}
+			node = child;
+		}
+		node.topicQueue = topicQueue;
+	}
+	
+	/**
+	 * Adds the queue of every wildcard topic matching the topic to the list, once each.
+	 */
+	public void match(String topic, List<TopicQueue> matches)
+	{
+		match(root, split(topic), 0, matches);
+	}
+	
+	private void match(Node node, String[] segments, int index, List<TopicQueue> matches)
+	{
+		Node anySegments = node.children.get(ANY_SEGMENTS);
+		if (anySegments != null)
+		{
+			// Tries every number of segments for the '#'
+			for (int i=index; i<=segments.length; i++)
+			{
+				match(anySegments, segments, i, matches);
+			}
+		}
+		
+		if (index == segments.length)
+		{
+			TopicQueue topicQueue = node.topicQueue;
+			// Patterns like 'a.#.#' reach the same node more than once
+			if (topicQueue != null && !matches.contains(topicQueue))
+				matches.add(topicQueue);
+			return;
+		}
+		
+		Node child = node.children.get(segments[index]);
+		if (child != null)
+			match(child, segments, index + 1, matches);
+		
+		Node anySegment = node.children.get(ANY_SEGMENT);
+		if (anySegment != null)
+			match(anySegment, segments, index + 1, matches);
+	}
+	
+	private static class Node
+	{
+		private final Map<String, Node> children = new ConcurrentHashMap<String, Node>();
+		private volatile TopicQueue topicQueue;
+	}
+}
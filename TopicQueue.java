@@ -1,10 +1,22 @@
 package src;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
 
 /**
  * Dedicated queue for every topic. 
@@ -17,36 +29,734 @@ public class TopicQueue extends LinkedBlockingQueue<Message> implements Runnable
 	 * 'history' will contain the messages that are pushed out of the TopicQueue
 	 * This will come in handy in case of a consumer failure
 	 */
-	private List<Message> history;
+	private MessageHistory history;
 	private Map<Integer, Consumer> subscribedConsumers;
 	private int peekCount=0;
 	private String topic;
 	private Dependency dependency;
+	/**
+	 * Threads of the dependent consumers parked until their turn to consume, by consumer ID.
+	 * A finished stage only unparks the consumers of the next stage.
+	 */
+	private final Map<Integer, Thread> dependencyWaiters = new ConcurrentHashMap<Integer, Thread>();
 	
 	/**
-	 * The message ID which is up for consumers to consume.
-	 * Defaulted to -1
+	 * History position the active message takes when it is polled, -1 if there is no active message.
+	 * Only the active message is added to history, so it is the history's end position when the message is activated.
+	 */
+	private volatile long activePosition=-1;
+	
+	private TopicStorageMode storageMode;
+	/**
+	 * Ring buffer storage, only used in RING mode. 
+	 * Slot of a sequence is 'sequence & ringMask'.
+	 */
+	private Message[] ring;
+	private int ringMask;
+	/**
+	 * Number of messages published to the ring. 
+	 */
+	private volatile long publishedSequence=0;
+	/**
+	 * Every sequence below this one has been moved to history.
+	 */
+	private volatile long releasedSequence=0;
+	/**
+	 * Read cursors of the subscribers. A slot is released only when all of them have passed it.
+	 */
+	private List<Sequence> gatingSequences;
+	private final Object ringLock = new Object();
+	/**
+	 * History position of ring sequence 0. Messages the commit log restored straight to history come first.
 	 */
-	private int activeMessageID=-1;
+	private long ringHistoryOffset=0;
+	/**
+	 * Persists the messages put into this queue. Null when persistence is disabled.
+	 */
+	private CommitLog commitLog;
+	/**
+	 * True while messages the commit log queued again wait for the first subscriber. A topic exists 
+	 * before anything subscribes to it, and without subscribers its loop would move them to history.
+	 */
+	private volatile boolean holdingRestored=false;
+	/**
+	 * Held while a message of a persisted LINKED topic is logged and queued, so that the log is in the 
+	 * order of the queue. Only producers holding it add to the queue, so a logged message always fits.
+	 */
+	private final Object appendLock = new Object();
+	/**
+	 * Queued messages that could not be written to the commit log. They are delivered all the same, 
+	 * but don't count as released records when they leave the queue.
+	 */
+	private final Set<Message> unloggedMessages = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<Message, Boolean>()));
+	
+	/**
+	 * Priority lanes, only used once enabled on a LINKED topic. Lane 0 has the lowest priority.
+	 * Null while the topic is a single FIFO queue.
+	 */
+	private volatile ArrayDeque<Message>[] lanes;
+	/**
+	 * Times every lane with messages was passed over for a higher one since it was last served
+	 */
+	private int[] passedOver;
+	private int starvationLimit;
+	/**
+	 * Lane of the current head. It is chosen once and kept until the head is polled, 
+	 * so that every subscriber reads the same head. -1 if not chosen yet.
+	 */
+	private int headLane=-1;
+	private volatile int laneSize=0;
+	private final Object laneLock = new Object();
+	private final int capacity;
+	
+	private final Meter enqueueMeter = new Meter();
+	private final Meter dequeueMeter = new Meter();
+	/**
+	 * Messages dropped from the head of the queue because they expired before they were activated
+	 */
+	private final Meter expiredMeter = new Meter();
+	/**
+	 * Time to live in milliseconds of messages that don't set their own expiry, 0 for none
+	 */
+	private volatile long defaultTimeToLive=0;
+	/**
+	 * Time dependent consumers spent waiting for their turn
+	 */
+	private final LongAdder dependencyWaitNanos = new LongAdder();
+	
+	/**
+	 * Sleeps for the queue's sleep period after every pass, like the loops always did
+	 */
+	public static final Supplier<IdleStrategy> SLEEPING_IDLE_STRATEGY = new Supplier<IdleStrategy>() {
+		public IdleStrategy get() {
+			return new SleepingIdleStrategy(QueueExt.getSleepPeriod());
+		}
+	};
+	
+	/**
+	 * Creates the idle strategies of this topic's loop and of the loops reading from it
+	 */
+	private Supplier<IdleStrategy> idleStrategySupplier;
+	/**
+	 * Idle strategy of the topic's own loop, signalled when the head may be outdated
+	 */
+	private IdleStrategy idleStrategy;
+	/**
+	 * Idle strategies of the subscription loops, signalled when a new message is up
+	 */
+	private final List<IdleStrategy> subscriberIdleStrategies = new CopyOnWriteArrayList<IdleStrategy>();
 	
 	public TopicQueue(int size, String topic) 
+	{
+		this(size, topic, TopicStorageMode.LINKED);
+	}
+	
+	public TopicQueue(int size, String topic, TopicStorageMode storageMode) 
 	{
 		super(size);
 		this.topic=topic;
-		init();
+		this.storageMode=storageMode;
+		this.capacity=size;
+		init(size);
 	}
-	private void init() 
+	
+	private void init(int size) 
 	{
-		this.history = new ArrayList<Message>();
+		this.history = new MessageHistory(RetentionPolicy.UNLIMITED);
 		this.subscribedConsumers = new HashMap<Integer, Consumer>();
 		this.dependency = null;	
+		setIdleStrategy(SLEEPING_IDLE_STRATEGY);
+		
+		if (isRingMode())
+		{
+			int capacity = 1;
+			while (capacity < size)
+				capacity <<= 1;
+			this.ring = new Message[capacity];
+			this.ringMask = capacity - 1;
+			this.gatingSequences = new CopyOnWriteArrayList<Sequence>();
+		}
+	}
+	
+	/**
+	 * Persists this topic to the given commit log. Messages already in the log are 
+	 * restored: the ones pushed out of the queue go to history, the others are queued again.
+	 * Queued ones are not released or polled before the first subscriber comes, so that it reads them.
+	 */
+	public void attachCommitLog(CommitLog commitLog) throws IOException
+	{
+		List<Message> messages = commitLog.replay();
+		int releasedCount = commitLog.getReleasedCount();
+		int restored = 0;
+		int unqueued = 0;
+		Message message;
+		commitLog.setRetentionPolicy(history.getRetentionPolicy());
+		for (int i=0; i<messages.size(); i++)
+		{
+			message = messages.get(i);
+			if (i < releasedCount)
+			{
+				history.add(message);
+			}
+			// Once one doesn't fit, the rest go to history too, so the queue keeps the order of the log
+			else if (unqueued == 0 && restoreQueued(message))
+			{
+				restored++;
+			}
+			else
+			{
+				System.out.println("Topic " + topic + " is full. Restored message " + message.getMessageID() + " only to history.");
+				history.add(message);
+				unqueued++;
+			}
+		}
+		commitLog.skipUnqueued(unqueued);
+		this.commitLog = commitLog;
+		this.holdingRestored = restored > 0;
+		if (isRingMode())
+			ringHistoryOffset = history.getEndPosition() - releasedSequence;
+		
+		if (!messages.isEmpty())
+			System.out.println("Topic " + topic + " restored " + messages.size() + " messages from disk, " + restored + " of them queued.");
+	}
+	
+	private boolean restoreQueued(Message message)
+	{
+		if (!isRingMode())
+			return super.offer(message);
+		
+		synchronized (ringLock) 
+		{
+			if (publishedSequence - releasedSequence >= ring.length)
+				return false;
+			ring[(int) publishedSequence & ringMask] = message;
+			publishedSequence++;
+			return true;
+		}
+	}
+	
+	public boolean isPersistent()
+	{
+		return commitLog != null;
+	}
+	
+	public void closeCommitLog()
+	{
+		if (commitLog != null)
+			commitLog.close();
+	}
+	
+	/**
+	 * Writes the message to the commit log before it is queued. 
+	 * A message that could not be written is still queued, and left out when released messages are counted.
+	 */
+	private void persist(Message message)
+	{
+		if (commitLog == null)
+			return;
+		
+		try {
+			commitLog.append(message);
+		} catch (IOException e) {
+			unloggedMessages.add(message);
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Checks if the message leaving the queue was written to the commit log
+	 */
+	private boolean isLogged(Message message)
+	{
+		return unloggedMessages.isEmpty() || !unloggedMessages.remove(message);
+	}
+	
+	/**
+	 * Logs the message and queues it on a persisted LINKED topic, waiting up to the timeout for room.
+	 * @param timeoutMillis - 0 not to wait, -1 to wait until there is room
+	 */
+	private boolean offerPersisted(Message message, long timeoutMillis) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		long remaining;
+		synchronized (appendLock) 
+		{
+			while (super.remainingCapacity() == 0)
+			{
+				remaining = deadline - System.currentTimeMillis();
+				if (timeoutMillis >= 0 && remaining <= 0)
+					return false;
+				// Polling doesn't take the lock, room is checked again after the sleep period
+				appendLock.wait(timeoutMillis < 0 ? QueueExt.getSleepPeriod() : Math.min(remaining, QueueExt.getSleepPeriod()));
+			}
+			persist(message);
+			super.offer(message);
+		}
+		enqueueMeter.mark();
+		idleStrategy.signal();
+		return true;
+	}
+	
+	/**
+	 * History position after the newest message in the topic, read or not. 
+	 * Queued messages take the positions after the history's end when they are polled.
+	 */
+	public long getHeadPosition()
+	{
+		if (isRingMode())
+			return getHistoryPosition(publishedSequence);
+		
+		return history.getEndPosition() + size();
+	}
+	
+	/**
+	 * Registers the metrics of this topic under 'topic.<name>.'
+	 */
+	public void registerMetrics(MetricsRegistry metrics)
+	{
+		String prefix = "topic." + topic + ".";
+		metrics.registerMeter(prefix + "enqueued", enqueueMeter);
+		metrics.registerMeter(prefix + "dequeued", dequeueMeter);
+		metrics.registerMeter(prefix + "expired", expiredMeter);
+		metrics.registerGauge(prefix + "depth", new Gauge() {
+			public long getValue() {
+				return size();
+			}
+		});
+		metrics.registerGauge(prefix + "historySize", new Gauge() {
+			public long getValue() {
+				return history.size();
+			}
+		});
+		metrics.registerGauge(prefix + "historyBytes", new Gauge() {
+			public long getValue() {
+				return history.getSizeInBytes();
+			}
+		});
+		metrics.registerGauge(prefix + "dependencyWaitNanos", new Gauge() {
+			public long getValue() {
+				return dependencyWaitNanos.sum();
+			}
+		});
+	}
+	
+	public boolean isRingMode()
+	{
+		return storageMode == TopicStorageMode.RING;
+	}
+	
+	public TopicStorageMode getStorageMode() 
+	{
+		return storageMode;
+	}
+	
+	/**
+	 * In RING mode, blocks while the ring is full and publishes the message at the next sequence.
+	 */
+	@Override
+	public void put(Message message) throws InterruptedException 
+	{
+		if (message == null)
+			throw new NullPointerException();
+		
+		if (lanes != null)
+		{
+			offerToLane(message, -1);
+			return;
+		}
+		
+		if (commitLog != null && !isRingMode())
+		{
+			offerPersisted(message, -1);
+			return;
+		}
+		
+		if (!isRingMode())
+		{
+			super.put(message);
+			enqueueMeter.mark();
+			idleStrategy.signal();
+			return;
+		}
+		
+		synchronized (ringLock) 
+		{
+			while (publishedSequence - releasedSequence >= ring.length)
+			{
+				releaseConsumed();
+				if (publishedSequence - releasedSequence >= ring.length)
+					ringLock.wait(QueueExt.getSleepPeriod());
+			}
+			// Logged once it has room, waiting releases the lock to other producers
+			persist(message);
+			ring[(int) publishedSequence & ringMask] = message;
+			// Volatile write publishes the slot to the readers
+			publishedSequence++;
+		}
+		enqueueMeter.mark();
+		signalSubscribers();
+	}
+	
+	/**
+	 * Queues the message without blocking. Returns false if the queue is full.
+	 */
+	@Override
+	public boolean offer(Message message) 
+	{
+		if (message == null)
+			throw new NullPointerException();
+		
+		if (lanes != null)
+		{
+			try {
+				return offerToLane(message, 0);
+			} catch (InterruptedException e) {
+				// Not reached, it doesn't wait
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		
+		if (commitLog != null && !isRingMode())
+		{
+			try {
+				return offerPersisted(message, 0);
+			} catch (InterruptedException e) {
+				// Not reached, it doesn't wait
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		
+		if (!isRingMode())
+		{
+			if (!super.offer(message))
+				return false;
+			enqueueMeter.mark();
+			idleStrategy.signal();
+			return true;
+		}
+		
+		synchronized (ringLock) 
+		{
+			if (publishedSequence - releasedSequence >= ring.length)
+			{
+				releaseConsumed();
+				if (publishedSequence - releasedSequence >= ring.length)
+					return false;
+			}
+			persist(message);
+			ring[(int) publishedSequence & ringMask] = message;
+			publishedSequence++;
+		}
+		enqueueMeter.mark();
+		signalSubscribers();
+		return true;
+	}
+	
+	/**
+	 * Queues the message, waiting up to the timeout for room. Returns false if the queue is still full.
+	 */
+	@Override
+	public boolean offer(Message message, long timeout, TimeUnit unit) throws InterruptedException 
+	{
+		if (message == null)
+			throw new NullPointerException();
+		
+		if (lanes != null)
+			return offerToLane(message, unit.toMillis(timeout));
+		
+		if (commitLog != null && !isRingMode())
+			return offerPersisted(message, unit.toMillis(timeout));
+		
+		if (!isRingMode())
+		{
+			if (!super.offer(message, timeout, unit))
+				return false;
+			enqueueMeter.mark();
+			idleStrategy.signal();
+			return true;
+		}
+		
+		long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+		long remaining;
+		synchronized (ringLock) 
+		{
+			while (publishedSequence - releasedSequence >= ring.length)
+			{
+				releaseConsumed();
+				remaining = deadline - System.currentTimeMillis();
+				if (publishedSequence - releasedSequence < ring.length)
+					break;
+				if (remaining <= 0)
+					return false;
+				ringLock.wait(Math.min(remaining, QueueExt.getSleepPeriod()));
+			}
+			persist(message);
+			ring[(int) publishedSequence & ringMask] = message;
+			publishedSequence++;
+		}
+		enqueueMeter.mark();
+		signalSubscribers();
+		return true;
+	}
+	
+	/**
+	 * Adds the message to the lane of its priority, waiting up to the timeout for room.
+	 * @param timeoutMillis - 0 not to wait, -1 to wait until there is room
+	 */
+	private boolean offerToLane(Message message, long timeoutMillis) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		long remaining;
+		synchronized (laneLock) 
+		{
+			while (laneSize >= capacity)
+			{
+				remaining = deadline - System.currentTimeMillis();
+				if (timeoutMillis >= 0 && remaining <= 0)
+					return false;
+				laneLock.wait(timeoutMillis < 0 ? 0 : remaining);
+			}
+			lanes[getLane(message, lanes.length)].addLast(message);
+			laneSize++;
+		}
+		enqueueMeter.mark();
+		idleStrategy.signal();
+		return true;
+	}
+	
+	private static int getLane(Message message, int laneCount)
+	{
+		return Math.max(0, Math.min(laneCount - 1, message.getPriority()));
+	}
+	
+	/**
+	 * Lane to take the head from: the highest lane with messages, unless a lower one was passed over 
+	 * 'starvationLimit' times, then the highest of those. Called with the lane lock held and messages queued.
+	 */
+	private int selectLane()
+	{
+		if (headLane != -1)
+			return headLane;
+		
+		int lane = lanes.length - 1;
+		while (lanes[lane].isEmpty())
+		{
+			lane--;
+		}
+		for (int l=lane-1; l>=0; l--)
+		{
+			if (!lanes[l].isEmpty() && passedOver[l] >= starvationLimit)
+			{
+				lane = l;
+				break;
+			}
+		}
+		
+		passedOver[lane] = 0;
+		for (int l=0; l<lane; l++)
+		{
+			if (!lanes[l].isEmpty())
+				passedOver[l]++;
+		}
+		headLane = lane;
+		return lane;
+	}
+	
+	private Message pollLane()
+	{
+		synchronized (laneLock) 
+		{
+			if (laneSize == 0)
+				return null;
+			
+			Message message = lanes[selectLane()].pollFirst();
+			headLane = -1;
+			laneSize--;
+			laneLock.notifyAll();
+			return message;
+		}
+	}
+	
+	private Message peekHead()
+	{
+		if (lanes == null)
+			return super.peek();
+		
+		synchronized (laneLock) 
+		{
+			if (laneSize == 0)
+				return null;
+			
+			return lanes[selectLane()].peekFirst();
+		}
+	}
+	
+	/**
+	 * Splits the queue into lanes by message priority. Subscribers read the highest lane with messages first.
+	 * A lower lane with messages goes first once it was passed over 'starvationLimit' times. 
+	 * Messages already queued are moved into their lanes, the current head stays the head.
+	 */
+	public synchronized void enablePriorityLanes(int laneCount, int starvationLimit)
+	{
+		synchronized (laneLock) 
+		{
+			// Arrays of a generic type can't be created, the lanes only ever hold ArrayDeque<Message>
+			@SuppressWarnings("unchecked")
+			ArrayDeque<Message>[] newLanes = (ArrayDeque<Message>[]) new ArrayDeque<?>[laneCount];
+			for (int i=0; i<laneCount; i++)
+			{
+				newLanes[i] = new ArrayDeque<Message>();
+			}
+			this.passedOver = new int[laneCount];
+			this.starvationLimit = starvationLimit;
+			
+			Message message;
+			int lane;
+			while ((message = super.poll()) != null)
+			{
+				lane = getLane(message, laneCount);
+				if (laneSize == 0)
+					headLane = lane;
+				newLanes[lane].addLast(message);
+				laneSize++;
+			}
+			this.lanes = newLanes;
+		}
+	}
+	
+	public boolean hasPriorityLanes()
+	{
+		return lanes != null;
+	}
+	
+	public long getPublishedSequence() 
+	{
+		return publishedSequence;
+	}
+	
+	/**
+	 * Sequence of the oldest message still in the ring. The messages before it are in history.
+	 */
+	public long getReleasedSequence() 
+	{
+		return releasedSequence;
+	}
+	
+	/**
+	 * Returns the message at the given sequence. The caller's gating sequence 
+	 * must not have passed it, otherwise the slot may already be reused.
+	 */
+	public Message getRingMessage(long sequence)
+	{
+		return ring[(int) sequence & ringMask];
+	}
+	
+	/**
+	 * History position that the message at the given ring sequence has, or gets once it is released.
+	 * Sequences are handed out in the order messages are published, so unlike message IDs they tell 
+	 * what a subscriber has read.
+	 */
+	public long getHistoryPosition(long sequence)
+	{
+		return sequence + ringHistoryOffset;
+	}
+	
+	/**
+	 * Registers a read cursor. A cursor behind the oldest message still in the ring is moved up to it,
+	 * every message before it is in history. A cursor re-registered after it read past that message 
+	 * stays where it is, as a slower subscriber holds the messages it read in the ring.
+	 */
+	public void addGatingSequence(Sequence sequence)
+	{
+		synchronized (ringLock) 
+		{
+			sequence.set(Math.max(sequence.get(), releasedSequence));
+			gatingSequences.add(sequence);
+			holdingRestored = false;
+		}
+	}
+	
+	public void removeGatingSequence(Sequence sequence)
+	{
+		synchronized (ringLock) 
+		{
+			gatingSequences.remove(sequence);
+		}
+		idleStrategy.signal();
+	}
+	
+	/**
+	 * Moves every message that all subscribers have read from the ring into history.
+	 * @return Number of messages released
+	 */
+	private int releaseConsumed()
+	{
+		synchronized (ringLock) 
+		{
+			long minimum = publishedSequence;
+			for (Sequence sequence : gatingSequences)
+			{
+				minimum = Math.min(minimum, sequence.get());
+			}
+			
+			if (minimum == releasedSequence)
+				return 0;
+			
+			int index;
+			Message message;
+			int logged = 0;
+			for (long s=releasedSequence; s<minimum; s++)
+			{
+				index = (int) s & ringMask;
+				message = ring[index];
+				history.add(message);
+				ring[index] = null;
+				if (commitLog != null && isLogged(message))
+					logged++;
+			}
+			int released = (int) (minimum - releasedSequence);
+			dequeueMeter.mark(released);
+			releasedSequence = minimum;
+			if (commitLog != null)
+				commitLog.markReleased(logged);
+			ringLock.notifyAll();
+			return released;
+		}
+	}
+	
+	@Override
+	public int size() 
+	{
+		if (isRingMode())
+			return (int) (publishedSequence - releasedSequence);
+		if (lanes != null)
+			return laneSize;
+		
+		return super.size();
+	}
+	
+	@Override
+	public int remainingCapacity() 
+	{
+		if (isRingMode())
+			return ring.length - size();
+		if (lanes != null)
+			return capacity - laneSize;
+		
+		return super.remainingCapacity();
 	}
 	
 	@Override
 	public Message poll() 
 	{
-		Message message = super.poll();
+		Message message = lanes != null ? pollLane() : super.poll();
+		if (message != null)
+			dequeueMeter.mark();
 		history.add(message);
+		if (commitLog != null && message != null && isLogged(message))
+			commitLog.markReleased(1);
 		
 		return message;
 	}
@@ -65,27 +775,122 @@ public class TopicQueue extends LinkedBlockingQueue<Message> implements Runnable
 	 */
 	public Message peek(boolean incrementPeekCount) 
 	{
-		if (incrementPeekCount)
+		if (!incrementPeekCount)
+			return peekHead();
+		
+		// Counted together with the read, so the head is not polled in between
+		synchronized (this) 
+		{
 			incrementPeekCount();
+			return peekHead();
+		}
+	}
+	
+	/**
+	 * With priority lanes, iterates over a snapshot of the lanes from the highest down
+	 */
+	@Override
+	public Iterator<Message> iterator() 
+	{
+		if (lanes == null)
+			return super.iterator();
 		
-		return super.peek();
+		List<Message> snapshot = new ArrayList<Message>(laneSize);
+		synchronized (laneLock) 
+		{
+			for (int l=lanes.length-1; l>=0; l--)
+			{
+				snapshot.addAll(lanes[l]);
+			}
+		}
+		return snapshot.iterator();
 	}
 	
-	public int getActiveMessageID() 
+	/**
+	 * Positions follow the order messages leave the queue, unlike message IDs, 
+	 * which racing producers and priority lanes put out of order.
+	 */
+	public long getActivePosition() 
 	{
-		return activeMessageID;
+		return activePosition;
 	}
 	
 	public Dependency getDependency() {
 		return dependency;
 	}
-	public List<Message> getHistory() 
+	public MessageHistory getHistory() 
 	{
 		return history;
 	}
+	
+	/**
+	 * Applies to the commit log's segments as well
+	 */
+	public void setRetentionPolicy(RetentionPolicy retentionPolicy)
+	{
+		history.setRetentionPolicy(retentionPolicy);
+		if (commitLog != null)
+			commitLog.setRetentionPolicy(retentionPolicy);
+	}
+	
+	public long getDefaultTimeToLive()
+	{
+		return defaultTimeToLive;
+	}
+	
+	/**
+	 * Expires the messages without an expiry of their own the given time after their creation. 0 turns it off.
+	 * Applies to queued messages and history as well.
+	 */
+	public void setDefaultTimeToLive(long defaultTimeToLive)
+	{
+		this.defaultTimeToLive = defaultTimeToLive;
+		history.setDefaultTimeToLive(defaultTimeToLive);
+	}
+	
+	/**
+	 * Checks if the message expired, by its own expiry or by the topic's default time to live
+	 */
+	public boolean isExpired(Message message)
+	{
+		long expiresAt = message.getExpiresAt(defaultTimeToLive);
+		return expiresAt != Long.MAX_VALUE && expiresAt <= System.currentTimeMillis();
+	}
+	
+	/**
+	 * Removes the expired messages at the head, before the head is activated. 
+	 * They are dropped without going to history. Only looks at the head, expired messages 
+	 * behind a live one are dropped when they reach it, or skipped by the subscribers.
+	 * @return Number of messages dropped
+	 */
+	private int dropExpiredHead()
+	{
+		int dropped=0;
+		int logged=0;
+		Message message;
+		while ((message = peekHead()) != null && isExpired(message))
+		{
+			if (lanes != null)
+				pollLane();
+			else
+				super.poll();
+			dropped++;
+			if (commitLog != null && isLogged(message))
+				logged++;
+		}
+		if (dropped > 0)
+		{
+			expiredMeter.mark(dropped);
+			if (commitLog != null)
+				commitLog.markReleased(logged);
+		}
+		return dropped;
+	}
+	
 	public synchronized void incrementPeekCount()
 	{
 		peekCount++;
+		idleStrategy.signal();
 	}
 	
 	public String getTopic() {
@@ -95,7 +900,7 @@ public class TopicQueue extends LinkedBlockingQueue<Message> implements Runnable
 	public void resetStats()
 	{
 		peekCount=0;
-		activeMessageID=-1; 
+		activePosition=-1;
 	}
 	
 	public void subscribeConsumer(Consumer consumer) 
@@ -103,7 +908,11 @@ public class TopicQueue extends LinkedBlockingQueue<Message> implements Runnable
 		synchronized (this) 
 		{
 			subscribedConsumers.put(consumer.getConsumerID(), consumer);
+			// Ring subscribers are counted once their gating sequence is registered
+			if (!isRingMode())
+				holdingRestored = false;
 		}
+		signalIdleStrategies();
 	}
 	
 	public void unsubscribeConsumer(Consumer consumer) 
@@ -112,6 +921,7 @@ public class TopicQueue extends LinkedBlockingQueue<Message> implements Runnable
 		{
 			subscribedConsumers.remove(consumer.getConsumerID());
 		}
+		signalIdleStrategies();
 	}
 	
 	public Consumer getSubscribedConsumer(int consumerID)
@@ -132,6 +942,108 @@ public class TopicQueue extends LinkedBlockingQueue<Message> implements Runnable
 		this.dependency= new Dependency(dependencyOrder, this);
 	}
 	
+	/**
+	 * Blocks until it is the consumer's turn in the dependency order, or the queue stops.
+	 */
+	public void awaitDependencyTurn(ConsumerTopic consumerTopic) throws InterruptedException
+	{
+		if (consumerTopic.isActiveDependentConsumer())
+			return;
+		
+		long start = System.nanoTime();
+		Integer consumerID = consumerTopic.getConsumer().getConsumerID();
+		// Registered before the check, so an unpark in between is not lost
+		dependencyWaiters.put(consumerID, Thread.currentThread());
+		try {
+			while (QueueExt.getInstance().isRunning() && !consumerTopic.isActiveDependentConsumer())
+			{
+				LockSupport.park(this);
+				if (Thread.interrupted())
+					throw new InterruptedException();
+			}
+		} finally {
+			dependencyWaiters.remove(consumerID);
+			dependencyWaitNanos.add(System.nanoTime() - start);
+		}
+	}
+	
+	/**
+	 * Wakes the given consumers, whose turn it now is in the dependency order.
+	 */
+	public void signalDependencyTurn(Consumer[] consumers)
+	{
+		Thread waiter;
+		for (Consumer consumer : consumers)
+		{
+			waiter = dependencyWaiters.get(consumer.getConsumerID());
+			if (waiter != null)
+				LockSupport.unpark(waiter);
+		}
+	}
+	
+	/**
+	 * Wakes every waiting dependent consumer to check if it is their turn.
+	 * Used when the order itself changes, e.g. a consumer is disabled or the queue stops.
+	 */
+	public void signalDependencyTurn()
+	{
+		for (Thread waiter : dependencyWaiters.values())
+		{
+			LockSupport.unpark(waiter);
+		}
+	}
+	
+	/**
+	 * Sets how the loops of this topic wait when they have nothing to do. 
+	 * Only applies to loops that have not started yet, so it is set before the topic starts.
+	 */
+	public void setIdleStrategy(Supplier<IdleStrategy> idleStrategySupplier)
+	{
+		this.idleStrategySupplier=idleStrategySupplier;
+		this.idleStrategy=idleStrategySupplier.get();
+	}
+	
+	/**
+	 * Creates the idle strategy of a loop reading from this topic. 
+	 * It is signalled whenever a new message is up.
+	 */
+	public IdleStrategy newSubscriberIdleStrategy()
+	{
+		IdleStrategy subscriberIdleStrategy = idleStrategySupplier.get();
+		subscriberIdleStrategies.add(subscriberIdleStrategy);
+		return subscriberIdleStrategy;
+	}
+	
+	public void removeSubscriberIdleStrategy(IdleStrategy subscriberIdleStrategy)
+	{
+		subscriberIdleStrategies.remove(subscriberIdleStrategy);
+	}
+	
+	/**
+	 * Tells the topic's loop that a subscriber has moved on, e.g. read further into the ring.
+	 */
+	public void signalIdleStrategy()
+	{
+		idleStrategy.signal();
+	}
+	
+	private void signalSubscribers()
+	{
+		for (IdleStrategy subscriberIdleStrategy : subscriberIdleStrategies)
+		{
+			subscriberIdleStrategy.signal();
+		}
+	}
+	
+	/**
+	 * Wakes the topic's loop and every subscription loop, e.g. when the queue stops.
+	 */
+	public void signalIdleStrategies()
+	{
+		idleStrategy.signal();
+		signalSubscribers();
+	}
+	
 	public void removeDependency()
 	{
 		this.dependency=null;
@@ -146,14 +1058,38 @@ public class TopicQueue extends LinkedBlockingQueue<Message> implements Runnable
 	}
 	
 	/**
-	 * Checks if the queue head is outdated
+	 * Checks if the queue head is outdated.
+	 * In RING mode, releases the slots every subscriber has read.
 	 */
 	@Override
 	public void run() 
 	{
+		int workCount;
+		long now;
 		while (QueueExt.getInstance().isRunning())
 		{
-			if (activeMessageID != -1)
+			workCount=0;
+			now = System.nanoTime();
+			enqueueMeter.tick(now);
+			dequeueMeter.tick(now);
+			expiredMeter.tick(now);
+			// Releases history segments that expired by age or time to live
+			history.expire();
+			if (commitLog != null)
+			{
+				commitLog.flushIfDue();
+				commitLog.applyRetention();
+			}
+			
+			if (holdingRestored)
+			{
+				// Restored messages wait for the first subscriber
+			}
+			else if (isRingMode())
+			{
+				workCount=releaseConsumed();
+			}
+			else if (activePosition != -1)
 			{
 				synchronized (this) 
 				{
@@ -162,6 +1098,7 @@ public class TopicQueue extends LinkedBlockingQueue<Message> implements Runnable
 					{
 						this.poll();
 						resetStats();
+						workCount=1;
 					}
 				}
 			}
@@ -169,24 +1106,23 @@ public class TopicQueue extends LinkedBlockingQueue<Message> implements Runnable
 			{
 				synchronized (this) 
 				{
+					workCount=dropExpiredHead();
 					if (this.size() != 0)
 					{
 						// Resetting inactive 
 						if (this.hasDependency())
 							this.getDependency().resetDependencyStack();
 						
-						// We do not want to increment peek count yet.
-						this.activeMessageID=this.peek(false).getMessageID();
+						// Subscribers read the active message once they see its position
+						this.activePosition=history.getEndPosition();
+						workCount++;
 					}
 				}
-				
+				if (workCount > 0)
+					signalSubscribers();
 			}
 			
-			try {
-				Thread.sleep(QueueExt.getSleepPeriod());
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
+			idleStrategy.idle(workCount);
 		}
 	}
 	
@@ -0,0 +1,21 @@
+package src;
+
+/**
+ * Storage used by a TopicQueue for messages that are not yet consumed.
+ * @author apebbati
+ *
+ */
+public enum TopicStorageMode 
+{
+	/**
+	 * Linked queue where every subscriber peeks the same head message
+	 * before it is polled. Supports consumer dependencies.
+	 */
+	LINKED,
+	
+	/**
+	 * Preallocated power-of-two ring buffer. Every subscriber reads at its own
+	 * sequence and a slot is released once the slowest subscriber has passed it.
+	 */
+	RING
+}
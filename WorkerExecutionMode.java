@@ -0,0 +1,20 @@
+package src;
+
+/**
+ * Kind of threads that run the subscription workers (ConsumerTopic) of all consumers.
+ * @author apebbati
+ *
+ */
+public enum WorkerExecutionMode 
+{
+	/**
+	 * A pooled platform thread per subscription
+	 */
+	PLATFORM,
+	
+	/**
+	 * A virtual thread per subscription. Needs Java 21 or later, 
+	 * platform threads are used otherwise.
+	 */
+	VIRTUAL
+}
@@ -0,0 +1,41 @@
+package src;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Setup shared by the benchmarks.
+ * @author apebbati
+ *
+ */
+final class BenchmarkSupport 
+{
+	static final int QUEUE_SIZE = 1024;
+	/**
+	 * History kept per topic, so that long runs don't measure a growing heap
+	 */
+	static final int RETAINED_MESSAGES = 64 * 1024;
+	
+	private BenchmarkSupport()
+	{
+	}
+	
+	/**
+	 * Creates the queue of the forked benchmark JVM without prompting for its size.
+	 * Console output and the diagnostic log of the queue are turned off, so that they are not part of the numbers.
+	 * Topics created on it retain RETAINED_MESSAGES messages of history.
+	 */
+	static QueueExt startQueue()
+	{
+		silenceOutput();
+		QueueExt queue = QueueExt.getInstance(QUEUE_SIZE);
+		queue.getDiagnosticLog().setEnabled(false);
+		queue.setDefaultRetentionPolicy(new RetentionPolicy(RETAINED_MESSAGES, 0, 0));
+		return queue;
+	}
+	
+	static void silenceOutput()
+	{
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+	}
+}
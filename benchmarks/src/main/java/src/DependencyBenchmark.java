@@ -0,0 +1,69 @@
+package src;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the dependency bookkeeping for one message: resetting the order for a new 
+ * head message and every consumer of the chain checking its turn and consuming.
+ * @author apebbati
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DependencyBenchmark 
+{
+	@Param({"2", "8"})
+	public int chainLength;
+	
+	private Consumer[] consumers;
+	private Dependency dependency;
+	
+	@Setup
+	public void setUp()
+	{
+		BenchmarkSupport.silenceOutput();
+		TopicQueue topicQueue = new TopicQueue(16, "dependency");
+		consumers = new Consumer[chainLength];
+		StringBuilder order = new StringBuilder();
+		for (int i=0; i<chainLength; i++)
+		{
+			consumers[i] = new Consumer(i);
+			topicQueue.subscribeConsumer(consumers[i]);
+			if (i > 0)
+				order.append("->");
+			order.append(i);
+		}
+		topicQueue.setDependency(order.toString());
+		dependency = topicQueue.getDependency();
+	}
+	
+	@Benchmark
+	public boolean consumeInOrder()
+	{
+		dependency.resetDependencyStack();
+		boolean inOrder = true;
+		// "0->1->..." means the last consumer of the order goes first
+		for (int i=chainLength-1; i>=0; i--)
+		{
+			inOrder &= dependency.isActiveConsumer(consumers[i]);
+			dependency.postConsumption(consumers[i]);
+		}
+		return inOrder;
+	}
+}
@@ -0,0 +1,87 @@
+package src;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency from Producer.pushMessage until every subscriber of the topic has 
+ * consumed the message, which is when the message reaches the topic's history.
+ * @author apebbati
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class EndToEndBenchmark 
+{
+	@Param({"LINKED", "RING"})
+	public TopicStorageMode storageMode;
+	
+	@Param({"1", "8"})
+	public int topicCount;
+	
+	@Param({"1", "4"})
+	public int subscriberCount;
+	
+	@Param({"false", "true"})
+	public boolean directRouting;
+	
+	private QueueExt queue;
+	private String[] topics;
+	private int next=0;
+	
+	@Setup
+	public void setUp()
+	{
+		queue = BenchmarkSupport.startQueue();
+		queue.setDirectRouting(directRouting);
+		queue.createConsumers(subscriberCount);
+		
+		topics = new String[topicCount];
+		for (int i=0; i<topicCount; i++)
+		{
+			topics[i] = "latency" + i;
+			queue.createTopic(topics[i], storageMode);
+		}
+		for (int i=0; i<subscriberCount; i++)
+		{
+			queue.subscribeConsumerTo(i, topics);
+		}
+	}
+	
+	@TearDown
+	public void tearDown()
+	{
+		queue.shutdown();
+	}
+	
+	@Benchmark
+	public long produceToConsume()
+	{
+		String topic = topics[next++ % topicCount];
+		MessageHistory history = queue.getTopicQueue(topic).getHistory();
+		long end = history.getEndPosition();
+		
+		queue.getProducer().pushMessage(new Message(topic));
+		while (history.getEndPosition() == end)
+		{
+			Thread.onSpinWait();
+		}
+		return end;
+	}
+}
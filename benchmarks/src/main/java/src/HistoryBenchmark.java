@@ -0,0 +1,74 @@
+package src;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Catch-up of a recovering consumer: looking up a message by its history position 
+ * and reading the whole history with doReadHistory.
+ * @author apebbati
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistoryBenchmark 
+{
+	@Param({"10000", "1000000"})
+	public int historySize;
+	
+	private TopicQueue topicQueue;
+	private Consumer consumer;
+	private DiagnosticLog diagnosticLog;
+	private long[] positions;
+	private int next=0;
+	
+	@Setup
+	public void setUp()
+	{
+		BenchmarkSupport.silenceOutput();
+		topicQueue = new TopicQueue(16, "history");
+		consumer = new Consumer(0);
+		diagnosticLog = new DiagnosticLog();
+		diagnosticLog.setEnabled(false);
+		
+		MessageHistory history = topicQueue.getHistory();
+		for (int i=0; i<historySize; i++)
+		{
+			history.add(new Message("history"));
+		}
+		positions = new long[1024];
+		// Positions spread evenly over the history
+		for (int i=0; i<positions.length; i++)
+		{
+			positions[i] = (long) i * historySize / positions.length;
+		}
+	}
+	
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public Message getMessage()
+	{
+		return topicQueue.getHistory().get(positions[next++ & (positions.length - 1)]);
+	}
+	
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public void readHistory()
+	{
+		new ConsumerTopic(consumer, topicQueue, diagnosticLog).doReadHistory();
+	}
+}
@@ -0,0 +1,101 @@
+package src;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of Producer into the main queue. The messages are routed to a 
+ * ring buffer topic without subscribers, so routing never holds the producers back.
+ * The router and the topic spin instead of sleeping, and every iteration waits for 
+ * the main queue to drain, so one iteration's backlog is not measured by the next.
+ * @author apebbati
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProducerBenchmark 
+{
+	private static final String TOPIC = "producer";
+	private static final int BATCH_SIZE = 100;
+	
+	private QueueExt queue;
+	private Producer producer;
+	
+	@Setup
+	public void setUp()
+	{
+		queue = BenchmarkSupport.startQueue();
+		queue.setRouterIdleStrategy(new BusySpinIdleStrategy());
+		queue.setDefaultIdleStrategy(new Supplier<IdleStrategy>() {
+			public IdleStrategy get() {
+				return new BusySpinIdleStrategy();
+			}
+		});
+		queue.createTopic(TOPIC, TopicStorageMode.RING);
+		producer = queue.getProducer();
+	}
+	
+	@TearDown(Level.Iteration)
+	public void drainMainQueue()
+	{
+		while (queue.getMainQueueSize() > 0)
+		{
+			Thread.onSpinWait();
+		}
+	}
+	
+	@TearDown
+	public void tearDown()
+	{
+		queue.shutdown();
+	}
+	
+	@Benchmark
+	public PushResult pushMessage()
+	{
+		return producer.pushMessage(new Message(TOPIC));
+	}
+	
+	/**
+	 * Several producer threads pushing at once
+	 */
+	@Benchmark
+	@Threads(4)
+	public PushResult pushMessageContended()
+	{
+		return producer.pushMessage(new Message(TOPIC));
+	}
+	
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public int pushMessages()
+	{
+		List<Message> batch = new ArrayList<Message>(BATCH_SIZE);
+		for (int i=0; i<BATCH_SIZE; i++)
+		{
+			batch.add(new Message(TOPIC));
+		}
+		return producer.pushMessages(batch, false);
+	}
+}
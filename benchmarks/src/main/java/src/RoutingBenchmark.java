@@ -0,0 +1,82 @@
+package src;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the main queue to topic routing step, spread over a number of 
+ * ring buffer topics without subscribers. Wildcard topics that match none of the 
+ * messages show what they add to finding a message's topics.
+ * @author apebbati
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoutingBenchmark 
+{
+	private static final int MESSAGE_COUNT = 1024;
+	
+	@Param({"1", "16"})
+	public int topicCount;
+	
+	@Param({"0", "256"})
+	public int wildcardTopicCount;
+	
+	private QueueExt queue;
+	private Message[] messages;
+	private int next=0;
+	
+	@Setup
+	public void setUp()
+	{
+		queue = BenchmarkSupport.startQueue();
+		for (int i=0; i<topicCount; i++)
+		{
+			queue.createTopic("routing" + i, TopicStorageMode.RING);
+		}
+		for (int i=0; i<wildcardTopicCount; i++)
+		{
+			queue.createTopic("wildcard" + i + ".*.#", TopicStorageMode.RING);
+		}
+		
+		messages = new Message[MESSAGE_COUNT];
+		for (int i=0; i<MESSAGE_COUNT; i++)
+		{
+			messages[i] = new Message("routing" + (i % topicCount));
+		}
+	}
+	
+	@TearDown
+	public void tearDown()
+	{
+		queue.shutdown();
+	}
+	
+	@Benchmark
+	public boolean putMessageToTopic()
+	{
+		return queue.putMessageToTopic(messages[next++ & (MESSAGE_COUNT - 1)]);
+	}
+	
+	@Benchmark
+	public TopicQueue[] resolveTopicQueues()
+	{
+		return queue.resolveTopicQueues(messages[next++ & (MESSAGE_COUNT - 1)]);
+	}
+}
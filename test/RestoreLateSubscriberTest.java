@@ -0,0 +1,98 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Messages a previous run left queued in the commit log are delivered to a subscriber
+ * that comes some time after the topic was restored.
+ * @author apebbati
+ *
+ */
+public class RestoreLateSubscriberTest
+{
+	private static final int PENDING = 4;
+	
+	@TempDir
+	static File directory;
+	private static PersistenceConfig config;
+	private static QueueExt queue;
+	private static int nextConsumerID = 0;
+	
+	@BeforeAll
+	public static void setUp()
+	{
+		config = new PersistenceConfig(directory, FsyncPolicy.PER_MESSAGE, 1, 0);
+		queue = TestSupport.startQueue();
+		queue.enablePersistence(config);
+	}
+	
+	@AfterAll
+	public static void tearDown()
+	{
+		queue.shutdown();
+	}
+	
+	@Test
+	public void ringTopicDeliversRestoredMessages() throws Exception
+	{
+		assertRestoredMessagesDelivered("restored-ring", TopicStorageMode.RING);
+	}
+	
+	@Test
+	public void linkedTopicDeliversRestoredMessages() throws Exception
+	{
+		assertRestoredMessagesDelivered("restored-linked", TopicStorageMode.LINKED);
+	}
+	
+	private void assertRestoredMessagesDelivered(String topic, TopicStorageMode storageMode) throws Exception
+	{
+		List<Long> pending = writePreviousRun(topic, storageMode);
+		
+		queue.createTopic(topic, storageMode);
+		// The topic's loop runs meanwhile, without subscribers
+		Thread.sleep(200);
+		
+		final List<Long> received = Collections.synchronizedList(new ArrayList<Long>());
+		int consumerID = nextConsumerID++;
+		queue.createConsumers(1);
+		queue.getConsumer(consumerID).setMessageHandler(new MessageHandler() {
+			public void onMessage(String topic, Message message) {
+				received.add(message.getMessageID());
+			}
+		});
+		queue.subscribeConsumerToTopic(consumerID, topic);
+		
+		TestSupport.awaitSize(received, PENDING);
+		assertEquals(pending, received);
+	}
+	
+	/**
+	 * Queues messages in a commit log the way the previous run's topic did, and leaves them unconsumed.
+	 */
+	private List<Long> writePreviousRun(String topic, TopicStorageMode storageMode) throws IOException, InterruptedException
+	{
+		TopicQueue previous = new TopicQueue(TestSupport.QUEUE_SIZE, topic, storageMode);
+		previous.attachCommitLog(new CommitLog(new File(directory, topic), config));
+		List<Long> ids = new ArrayList<Long>();
+		Message message;
+		for (int i=0; i<PENDING; i++)
+		{
+			message = new Message(topic);
+			ids.add(message.getMessageID());
+			previous.put(message);
+		}
+		previous.closeCommitLog();
+		return ids;
+	}
+}
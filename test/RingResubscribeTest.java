@@ -0,0 +1,108 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * A ring subscriber that is disabled and enabled again, while a slower subscriber
+ * holds the messages it read in the ring, must not read them a second time.
+ * @author apebbati
+ *
+ */
+public class RingResubscribeTest
+{
+	private static final String TOPIC = "ring";
+	private static final int FAST = 0;
+	private static final int SLOW = 1;
+	
+	private static QueueExt queue;
+	/**
+	 * Released by tearDown as well, a failed test must not leave the consumer blocked in shutdown
+	 */
+	private static final CountDownLatch slowStart = new CountDownLatch(1);
+	
+	@BeforeAll
+	public static void setUp()
+	{
+		queue = TestSupport.startQueue();
+	}
+	
+	@AfterAll
+	public static void tearDown()
+	{
+		slowStart.countDown();
+		queue.shutdown();
+	}
+	
+	@Test
+	public void resubscribedConsumerSkipsWhatItRead() throws InterruptedException
+	{
+		final List<Long> fast = Collections.synchronizedList(new ArrayList<Long>());
+		final List<Long> slow = Collections.synchronizedList(new ArrayList<Long>());
+		
+		queue.createTopic(TOPIC, TopicStorageMode.RING);
+		queue.createConsumers(2);
+		queue.getConsumer(FAST).setMessageHandler(new MessageHandler() {
+			public void onMessage(String topic, Message message) {
+				fast.add(message.getMessageID());
+			}
+		});
+		// Holds the release point of the ring at the first message until the test lets it go
+		queue.getConsumer(SLOW).setMessageHandler(new MessageHandler() {
+			public void onMessage(String topic, Message message) {
+				try {
+					slowStart.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				slow.add(message.getMessageID());
+			}
+		});
+		queue.subscribeConsumerToTopic(FAST, TOPIC);
+		queue.subscribeConsumerToTopic(SLOW, TOPIC);
+		
+		List<Long> pushed = new ArrayList<Long>();
+		pushed.addAll(push(10));
+		TestSupport.awaitSize(fast, 10);
+		assertEquals(0, queue.getTopicQueue(TOPIC).getReleasedSequence());
+		
+		queue.disableConsumer(FAST);
+		Thread.sleep(200);
+		queue.enableConsumer(FAST);
+		pushed.addAll(push(5));
+		TestSupport.awaitSize(fast, 15);
+		
+		slowStart.countDown();
+		TestSupport.awaitSize(slow, 15);
+		// Duplicates would arrive after the last expected message
+		Thread.sleep(200);
+		
+		assertEquals(pushed, fast);
+		assertEquals(pushed, slow);
+		assertTrue(new HashSet<Long>(fast).size() == fast.size());
+	}
+	
+	private List<Long> push(int count)
+	{
+		List<Long> ids = new ArrayList<Long>();
+		Message message;
+		for (int i=0; i<count; i++)
+		{
+			message = new Message(TOPIC);
+			ids.add(message.getMessageID());
+			assertTrue(queue.getProducer().pushMessage(message).isAccepted());
+		}
+		return ids;
+	}
+}
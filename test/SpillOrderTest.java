@@ -0,0 +1,122 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Messages pushed while others are spilled to disk, one by one or as a batch,
+ * queue up behind the spilled ones, even when the main queue has room again.
+ * @author apebbati
+ *
+ */
+public class SpillOrderTest
+{
+	private static final String TOPIC = "spill";
+	private static final int MAX_PUSHES = 10000;
+	private static final int BATCH_SIZE = 5;
+	
+	@TempDir
+	static File directory;
+	private static QueueExt queue;
+	/**
+	 * Released by tearDown as well, a failed test must not leave the consumer blocked in shutdown
+	 */
+	private static final CountDownLatch consumerStart = new CountDownLatch(1);
+	
+	@BeforeAll
+	public static void setUp()
+	{
+		queue = TestSupport.startQueue();
+		queue.setSpillFile(new File(directory, "main.spill"));
+		queue.setOverflowPolicy(OverflowPolicy.SPILL_TO_DISK);
+	}
+	
+	@AfterAll
+	public static void tearDown()
+	{
+		consumerStart.countDown();
+		queue.shutdown();
+	}
+	
+	@Test
+	public void batchQueuesBehindSpilledMessages() throws InterruptedException
+	{
+		final List<Long> received = Collections.synchronizedList(new ArrayList<Long>());
+		// Ring topics deliver without waiting for the topic loop between messages
+		queue.createTopic(TOPIC, TopicStorageMode.RING);
+		queue.createConsumers(1);
+		// Holds the first message, so the topic, the router and then the main queue fill up
+		queue.getConsumer(0).setMessageHandler(new MessageHandler() {
+			public void onMessage(String topic, Message message) {
+				try {
+					consumerStart.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				received.add(message.getMessageID());
+			}
+		});
+		queue.subscribeConsumerToTopic(0, TOPIC);
+		
+		List<Long> pushed = new ArrayList<Long>();
+		Message message;
+		// The router takes in spilled messages until it holds back too many and blocks on the full topic
+		do
+		{
+			assertTrue(pushed.size() < MAX_PUSHES, "Main queue never stayed full");
+			message = new Message(TOPIC);
+			pushed.add(message.getMessageID());
+			assertTrue(queue.getProducer().pushMessage(message).isAccepted());
+		}
+		while (!isSpilling());
+		
+		// Room in the main queue for the batch, with messages still on disk. The router's
+		// last pass may already have emptied it.
+		Message taken;
+		for (int i=0; i<BATCH_SIZE; i++)
+		{
+			taken = queue.pollMainQueue();
+			if (taken != null)
+				assertTrue(pushed.remove(Long.valueOf(taken.getMessageID())));
+		}
+		
+		List<Message> batch = new ArrayList<Message>();
+		for (int i=0; i<BATCH_SIZE; i++)
+		{
+			message = new Message(TOPIC);
+			pushed.add(message.getMessageID());
+			batch.add(message);
+		}
+		assertEquals(batch.size(), queue.getProducer().pushMessages(batch, true));
+		
+		message = new Message(TOPIC);
+		pushed.add(message.getMessageID());
+		assertEquals(PushResult.SPILLED, queue.getProducer().pushMessage(message));
+		
+		consumerStart.countDown();
+		TestSupport.awaitSize(received, pushed.size());
+		assertEquals(pushed, received);
+	}
+	
+	/**
+	 * Whether messages are still spilled once the router had time to take them in
+	 */
+	private boolean isSpilling() throws InterruptedException
+	{
+		if (queue.getMetrics().getSnapshot().get("mainQueue.spilled") == 0)
+			return false;
+		Thread.sleep(100);
+		return queue.getMetrics().getSnapshot().get("mainQueue.spilled") > 0;
+	}
+}
@@ -0,0 +1,44 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.util.Collection;
+
+/**
+ * Setup shared by the tests.
+ * @author apebbati
+ *
+ */
+final class TestSupport
+{
+	static final int QUEUE_SIZE = 64;
+	static final long TIMEOUT_MILLIS = 10000;
+	
+	private TestSupport()
+	{
+	}
+	
+	/**
+	 * Creates the queue of the test JVM without prompting for its size, with the diagnostic log turned off.
+	 */
+	static QueueExt startQueue()
+	{
+		QueueExt queue = QueueExt.getInstance(QUEUE_SIZE);
+		queue.getDiagnosticLog().setEnabled(false);
+		return queue;
+	}
+	
+	/**
+	 * Waits until the collection, filled by other threads, holds the given number of elements.
+	 */
+	static void awaitSize(Collection<?> collection, int size) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (collection.size() < size)
+		{
+			if (System.currentTimeMillis() > deadline)
+				fail("Expected " + size + " elements, got " + collection.size() + ": " + collection);
+			Thread.sleep(10);
+		}
+	}
+}